@@ -2,6 +2,14 @@ package info.michaelknierim;
 
 import gnu.io.NoSuchPortException;
 import gnu.io.SerialPort;
+import info.michaelknierim.hr.HRVEngine;
+import info.michaelknierim.hr.HRVListener;
+import info.michaelknierim.hr.HRVWindow;
+import info.michaelknierim.hr.HeartRateMeasurement;
+import info.michaelknierim.hr.RRArtifactFilter;
+import info.michaelknierim.storage.HRRollupStore;
+import info.michaelknierim.storage.HRSessionStore;
+import info.michaelknierim.storage.HRLog;
 import org.thingml.bglib.*;
 import org.thingml.bglib.gui.*;
 
@@ -9,6 +17,8 @@ import javax.swing.*;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,15 +31,40 @@ public class HRBeltListener extends BGAPIDefaultListener {
     protected BGAPI bgapi;
     protected SerialPort port;
     protected BGAPIPacketLogger bgapiLogger = new BGAPIPacketLogger();
+    protected BLED112Simulator simulator;
+    protected BGAPICaptureWriter capture;
 
     // Available BLE Devices.
     protected BLEDeviceList devList = new BLEDeviceList();
     protected BLEDevice bledevice;
-    private final String HR_BELT_MAC = "0:18:31:f0:ee:be";
+    private BDAddr HR_BELT_MAC = BDAddr.fromString("00:18:31:f0:ee:be");
 
     // Set defaults for BLED112 options (scanning, connecting, package lookup)
-    private final String PORT_NAME = "/dev/tty.usbmodem1";
+    // Run with -Dhrlogger.port=simulator to use a simulated dongle and belt.
+    private final String PORT_NAME = System.getProperty("hrlogger.port", "/dev/tty.usbmodem1");
+    private final String SIMULATOR_PORT = "simulator";
+    private final long COMMAND_TIMEOUT = 1000; // ms to wait for a command response
+    private final int GET_INFO_ATTEMPTS = 5; // the dongle may still be enumerating when the port opens
+    private final int EVENT_QUEUE_SIZE = 1024; // events waiting for the listener thread
+    protected final BGAPIScanFilter scanFilter = new BGAPIScanFilter();
+    private final long DEVICE_TTL = 60000; // ms before a device which stopped advertising is removed
     Boolean DEBUG = false;
+    // Run with -Dhrlogger.capture=<file> to record the BGAPI traffic for BGAPIReplayTransport.
+    private final String CAPTURE_FILE = System.getProperty("hrlogger.capture");
+
+    // Persistent heart rate log, committed to disk every second or every 256 records.
+    private final String LOG_DIRECTORY = System.getProperty("hrlogger.dir", "hrlog");
+    private final long LOG_COMMIT_INTERVAL = 1000; // ms
+    private final int LOG_COMMIT_SAMPLES = 256;
+    protected HRLog hrLog;
+    // Beat-level columns for analysing long sessions, one store per belt.
+    protected HRSessionStore hrSessions;
+    // 1 s to 10 min aggregates for charts.
+    protected HRRollupStore hrRollups;
+    // Replaces missed, extra and bogus beats before the HRV is computed; the logs keep the raw intervals.
+    protected final RRArtifactFilter rrFilter = new RRArtifactFilter();
+    // Live HRV over the last minute and the last 5 minutes; add an HRVListener to display it.
+    protected final HRVEngine hrv = new HRVEngine(60000, 300000);
 
     // GATT Discovery (from BLEExplorerDialog.java)
     private static final int IDLE = 0;
@@ -57,6 +92,30 @@ public class HRBeltListener extends BGAPIDefaultListener {
         // Approach to connect to BLE devices through the provided BLEExplorer GUI by bglib.
         // runExlorerFrame();
 
+        try {
+            hrLog = new HRLog(java.nio.file.Paths.get(LOG_DIRECTORY), LOG_COMMIT_INTERVAL, LOG_COMMIT_SAMPLES);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot open the heart rate log in " + LOG_DIRECTORY + ", samples will not be saved.", e);
+        }
+        try {
+            hrSessions = new HRSessionStore(java.nio.file.Paths.get(LOG_DIRECTORY, "sessions"));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot open the heart rate columns in " + LOG_DIRECTORY, e);
+        }
+        try {
+            hrRollups = new HRRollupStore(java.nio.file.Paths.get(LOG_DIRECTORY, "rollups"), LOG_COMMIT_INTERVAL);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot open the heart rate rollups in " + LOG_DIRECTORY, e);
+        }
+
+        rrFilter.setCorrection(RRArtifactFilter.REPLACE);
+        hrv.addListener(new HRVListener() {
+            @Override
+            public void hrvUpdated(HRVWindow window) {
+                if (logger.isLoggable(Level.FINE)) logger.fine(window.toString());
+            }
+        });
+
         // New version adapted from bglib_test_hr_collector.py and BLEExplorerDialog.java
         runHRBeltDiscovery();
     }
@@ -78,12 +137,29 @@ public class HRBeltListener extends BGAPIDefaultListener {
 
             // Add debugger if desired.
             if (DEBUG) bgapi.getLowLevelDriver().addListener(bgapiLogger);
+            if (CAPTURE_FILE != null) {
+                try {
+                    capture = new BGAPICaptureWriter(java.nio.file.Paths.get(CAPTURE_FILE));
+                    bgapi.getLowLevelDriver().addListener(capture);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Cannot record to " + CAPTURE_FILE, e);
+                }
+            }
 
-            // Reset.
-            resetBLED112Status();
+            // Reset and start scanning for BLE devices, connect to HR belt when it is available.
+            // The commands are pipelined, the dongle answers them in order.
+            CompletableFuture<Void> reset = resetBLED112Status();
+            CompletableFuture<BGAPIPacket> discover = discoverAndConnect();
 
-            // Start scanning for BLE devices and connect to HR belt when it is available.
-            discoverAndConnect();
+            try {
+                reset.get();
+                int result = discover.get().getPayloadReader().r_uint16();
+                if (result != 0) logger.warning("Discovery failed with error code 0x" + Integer.toHexString(result));
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "BLED112 did not accept the discovery commands.", e.getCause());
+            } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, null, e);
+            }
         }
     }
 
@@ -97,17 +173,46 @@ public class HRBeltListener extends BGAPIDefaultListener {
 
         logger.info("Connecting BLED112 Dongle...");
 
-        // Create serial port object
-        port = org.thingml.bglib.gui.BLED112.connectSerial(portName);
+        if (portName.equals(SIMULATOR_PORT)) {
+            // 20 advertising devices, the first one is a heart rate belt
+            simulator = new BLED112Simulator(20, 1);
+            HR_BELT_MAC = BLED112Simulator.getAddress(0);
+        } else {
+            // Create serial port object
+            port = org.thingml.bglib.gui.BLED112.connectSerial(portName);
+        }
 
-        if (port != null) {
+        if (port != null || simulator != null) {
             try {
-                bgapi = new BGAPI(new BGAPITransport(port.getInputStream(), port.getOutputStream()));
+                BGAPITransport transport = (simulator != null)
+                        ? new BGAPITransport(simulator.getInputStream(), simulator.getOutputStream())
+                        : new BGAPITransport(port.getInputStream(), port.getOutputStream());
+                // All our transport listeners consume packets synchronously, so they can be recycled.
+                transport.setRecyclePackets(true);
+                // Write commands from a sender thread, coalescing bursts into single writes.
+                transport.startSendQueue(64, BGAPITransport.OverflowPolicy.BLOCK, 0);
+                bgapi = new BGAPI(transport);
+                bgapi.setEventExecutor(BGAPIEventExecutor.ordered(EVENT_QUEUE_SIZE));
+                // Only new devices, changed advertisements and RSSI moves reach the listener
+                bgapi.setScanFilter(scanFilter);
                 bgapi.addListener(this);
-                Thread.sleep(250);
-                bgapi.send_system_get_info();
+
+                // Wait for the dongle to answer rather than sleeping for a fixed time. A command sent
+                // while it is still starting up can be lost, so get_info is retried before giving up.
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        bgapi.send_system_get_info_async(COMMAND_TIMEOUT).get();
+                        break;
+                    } catch (ExecutionException e) {
+                        if (attempt == GET_INFO_ATTEMPTS) throw e;
+                        logger.log(Level.INFO, "BLED112 did not answer get_info, attempt {0} of {1}.", new Object[]{attempt, GET_INFO_ATTEMPTS});
+                    }
+                }
 
                 isConnected = true;
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "BLED112 is not responding.", e.getCause());
+                return false;
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
@@ -126,31 +231,39 @@ public class HRBeltListener extends BGAPIDefaultListener {
     /**
      * ...
      */
-    private void resetBLED112Status() {
-        // Disconnect if connected already.
-        bgapi.send_connection_disconnect(connection);
+    private CompletableFuture<Void> resetBLED112Status() {
+        return CompletableFuture.allOf(
+                // Disconnect if connected already.
+                bgapi.send_connection_disconnect_async(connection, COMMAND_TIMEOUT),
 
-        // Stop advertising if advertising already.
-        bgapi.send_gap_set_mode(0, 0);
+                // Stop advertising if advertising already.
+                bgapi.send_gap_set_mode_async(0, 0, COMMAND_TIMEOUT),
 
-        // Stop scanning if scanning already.
-        bgapi.send_gap_end_procedure();
+                // Stop scanning if scanning already.
+                bgapi.send_gap_end_procedure_async(COMMAND_TIMEOUT));
     }
 
     /**
      * This starts scanning for available BLE devices.
+     *
+     * @return the response to gap_discover
      */
-    private void discoverAndConnect() {
+    private CompletableFuture<BGAPIPacket> discoverAndConnect() {
         devList.clear();
-        bgapi.send_gap_set_scan_parameters(10, 250, 1);
-        bgapi.send_gap_discover(1);
+        devList.startSweeper(DEVICE_TTL);
+        scanFilter.reset();
+        bgapi.send_gap_set_scan_parameters_async(10, 250, 1, COMMAND_TIMEOUT);
+        return bgapi.send_gap_discover_async(1, COMMAND_TIMEOUT);
     }
 
     /**
      * Disconnect the BLED112 dongle.
      */
     public void disconnectBLED112() {
+        devList.stopSweeper();
         devList.clear();
+        logger.info(scanFilter.toString());
+        unsubscribeHRMeasurement();
 
         if (connection >= 0) {
             bgapi.send_connection_disconnect(connection);
@@ -160,15 +273,25 @@ public class HRBeltListener extends BGAPIDefaultListener {
         if (bgapi != null) {
             bgapi.removeListener(this);
             bgapi.getLowLevelDriver().removeListener(bgapiLogger);
+            if (capture != null) {
+                bgapi.getLowLevelDriver().removeListener(capture);
+                capture.close();
+                capture = null;
+            }
             logger.info("BLE: Reset BLED112 Dongle");
             bgapi.send_system_reset(0);
             bgapi.disconnect();
+            if (bgapi.getEventExecutor() != null) bgapi.getEventExecutor().shutdown();
         }
         if (port != null) {
             port.close();
         }
+        if (simulator != null) {
+            simulator.close();
+        }
         bgapi = null;
         port = null;
+        simulator = null;
     }
 
     /**
@@ -182,7 +305,7 @@ public class HRBeltListener extends BGAPIDefaultListener {
         if (bledevice != null) {
             logger.info("Trying to connect to HR belt now.");
 
-            bgapi.send_gap_connect_direct(BDAddr.fromString(bledevice.getAddress()), hrDeviceAddressType, 0x3C, 0x3C, 0x64, 0);
+            bgapi.send_gap_connect_direct(new BDAddr(bledevice.getKey()), hrDeviceAddressType, 0x3C, 0x3C, 0x64, 0);
         }
     }
 
@@ -201,6 +324,7 @@ public class HRBeltListener extends BGAPIDefaultListener {
     // Most of this code was adapted from BLEExplorerDialog.java
     private void disconnectBLEDevice() {
         bledevice = null;
+        unsubscribeHRMeasurement();
 
         if (connection >= 0) {
             bgapi.send_connection_disconnect(connection);
@@ -219,18 +343,28 @@ public class HRBeltListener extends BGAPIDefaultListener {
     public void receive_connection_status(int conn, int flags, BDAddr address, int address_type, int conn_interval, int timeout, int latency, int bonding) {
         if (flags != 0) {
             logger.info("Connection status received.");
-            bledevice = devList.getFromAddress(address.toString());
+            // The device may have been removed from the list since it stopped advertising
+            BLEDevice d = devList.getFromAddress(address);
+            if (d == null) {
+                d = new BLEDevice(address);
+                devList.add(d);
+            }
+            bledevice = d;
             connection = conn;
 
             // TODO: This if-clause is probably not required in this case.
             // If connected, perform service discovery
-            if (bledevice.getAddress().equals(HR_BELT_MAC)) {
+            if (address.equals(HR_BELT_MAC)) {
                 isHRBeltConnected = true;
+                rrFilter.reset();
+                hrv.reset();
                 // Start reading out data packets
                 readOutHRBeltData();
             }
         } else {
             logger.info("Connection was lost!");
+            unsubscribeHRMeasurement();
+            isHRBeltConnected = false;
             connection = -1;
             bledevice = null;
         }
@@ -265,6 +399,7 @@ public class HRBeltListener extends BGAPIDefaultListener {
 
                     // TODO: Integrate this with rest of the code later.
                     // Subscribe listener to specific attribute of a service (here: HR).
+                    bgapi.subscribeAttribute(connection, att_handle_measurement, hrMeasurementListener);
                     bgapi.send_attclient_attribute_write(connection, att_handle_measurement_config, new byte[]{0x01, 0x00});
 
                     // TODO: Use this to read out device descriptions, etc.
@@ -309,15 +444,89 @@ public class HRBeltListener extends BGAPIDefaultListener {
         }
     }
 
-    @Override
-    public void receive_attclient_attribute_value(int connection, int atthandle, int type, byte[] value) {
-        // Check for a new value from the connected peripheral's heart rate measurement attribute.
+    // Reused for every notification, they are all handled by the event thread.
+    private final HeartRateMeasurement hrMeasurement = new HeartRateMeasurement();
+
+    // Receives only the values of the heart rate measurement attribute (see subscribeAttribute).
+    private final BGAPIAttributeListener hrMeasurementListener = new BGAPIAttributeListener() {
+        @Override
+        public void receive_attclient_attribute_value(int connection, int atthandle, int type, byte[] value) {
+            receiveHRMeasurement(value);
+        }
+    };
+
+    /**
+     * Handles a new value from the connected peripheral's heart rate measurement attribute.
+     */
+    private void receiveHRMeasurement(byte[] value) {
         if (isHRBeltConnected) {
-            int hr_flags = value[0];    // TODO: Not sure if needed or correct...
-            int hr_value = value[1];    // TODO: Not sure if needed or correct...
+            if (!hrMeasurement.decode(value, 0, value.length)) {
+                logger.warning("Malformed heart rate measurement: " + bytesToString(value));
+                return;
+            }
+            if (logger.isLoggable(Level.FINE)) logger.fine(hrMeasurement.toString());
+            long timestamp = System.currentTimeMillis();
+            // Each store on its own, a failing one does not keep the sample from the others
+            if (hrLog != null) {
+                try {
+                    hrLog.append(timestamp, 0, hrMeasurement);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Heart rate sample not saved to the log.", e);
+                }
+            }
+            if (hrSessions != null) {
+                try {
+                    hrSessions.append(HR_BELT_MAC.toString(), timestamp, hrMeasurement);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Heart rate sample not saved to the columns.", e);
+                }
+            }
+            if (hrRollups != null) {
+                try {
+                    hrRollups.append(HR_BELT_MAC.toString(), timestamp, hrMeasurement.getHeartRate());
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Heart rate sample not saved to the rollups.", e);
+                }
+            }
+            rrFilter.filter(hrMeasurement);
+            hrv.add(hrMeasurement);
+        }
+    }
+
+    /**
+     * Writes the pending heart rate samples to disk and closes the log.
+     */
+    public void closeLog() {
+        logger.info(rrFilter.toString());
+        if (hrLog != null) {
+            try {
+                hrLog.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Heart rate log not closed properly.", e);
+            }
+        }
+        if (hrSessions != null) {
+            try {
+                hrSessions.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Heart rate columns not closed properly.", e);
+            }
+        }
+        if (hrRollups != null) {
+            try {
+                hrRollups.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Heart rate rollups not closed properly.", e);
+            }
+        }
+    }
 
-            // System.out.println("Attclient Value att=" + Integer.toHexString(atthandle) + " val = " + bytesToString(value));
-            System.out.println("HR value: " + hr_value);
+    /**
+     * Stops the delivery of heart rate measurements of the current connection.
+     */
+    private void unsubscribeHRMeasurement() {
+        if (bgapi != null && connection >= 0 && att_handle_measurement > 0) {
+            bgapi.unsubscribeAttribute(connection, att_handle_measurement, hrMeasurementListener);
         }
     }
 
@@ -326,20 +535,22 @@ public class HRBeltListener extends BGAPIDefaultListener {
     public void receive_gap_scan_response(int rssi, int packet_type, BDAddr sender, int address_type, int bond, byte[] data) {
 
         // TODO: This weirdly fails sometimes. Maybe need a way to restart the scan if there is no response being received...
-        BLEDevice d = devList.getFromAddress(sender.toString());
-        if (d == null) {
-            d = new BLEDevice(sender.toString());
+        BLEDevice d = devList.getFromAddress(sender);
+        boolean created = d == null;
+        if (created) {
+            d = new BLEDevice(sender);
             devList.add(d);
+        }
+        String name = new String(data).trim();
+        if (d.getName().length() < name.length()) d.setName(name);
+        d.setRssi(rssi); // also the last seen time, which keeps the device out of the sweeper
+        devList.changed(d);
 
-            String name = new String(data).trim();
-            if (d.getName().length() < name.length()) d.setName(name);
-            d.setRssi(rssi);
-            devList.changed(d);
-
+        if (created) {
             System.out.println("Create device: " + d.toString());
 
             // When the HR belt is found, update the state variable
-            if (sender.toString().equals(HR_BELT_MAC)) {
+            if (sender.equals(HR_BELT_MAC)) {
                 isHRBeltAvailable = true;
 
                 // Print all values for the heart belt monitor
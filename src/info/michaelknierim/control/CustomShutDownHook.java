@@ -17,6 +17,10 @@ public class CustomShutDownHook extends Thread {
         // Close BLED112 connection
         if (hrBeltListener != null && hrBeltListener.getConnection() >= 0)
             hrBeltListener.disconnectBLED112();
+
+        // Save the collected data
+        if (hrBeltListener != null)
+            hrBeltListener.closeLog();
     }
 
     public void setHRBeltListener(HRBeltListener hrBeltListener) {
@@ -0,0 +1,75 @@
+package info.michaelknierim.hr;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Live HRV of the RR intervals of a heart rate measurement stream, over
+ * several window lengths at once:
+ *
+ *   HRVEngine hrv = new HRVEngine(60000, 300000);
+ *   hrv.addListener(l);
+ *   ...
+ *   hrv.add(measurement); // for every notification
+ *
+ * The listeners are called on the thread calling add(), once per window
+ * after each measurement carrying RR intervals.
+ */
+public class HRVEngine {
+
+    private final HRVWindow[] windows;
+    private final CopyOnWriteArrayList<HRVListener> listeners = new CopyOnWriteArrayList<HRVListener>();
+
+    /**
+     * @param windowLengths in ms
+     */
+    public HRVEngine(long... windowLengths) {
+        windows = new HRVWindow[windowLengths.length];
+        for (int i = 0; i < windows.length; i++) windows[i] = new HRVWindow(windowLengths[i]);
+    }
+
+    public void addListener(HRVListener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(HRVListener l) {
+        listeners.remove(l);
+    }
+
+    public void add(HeartRateMeasurement m) {
+        if (m.getRRCount() == 0) return;
+        int[] rr = m.getRRIntervals();
+        for (HRVWindow w : windows) {
+            for (int i = 0; i < m.getRRCount(); i++) w.add(rr[i]);
+        }
+        publish();
+    }
+
+    /**
+     * Adds a single RR interval (1/1024 s) without notifying the listeners.
+     */
+    public void add(int rr) {
+        for (HRVWindow w : windows) w.add(rr);
+    }
+
+    public void publish() {
+        for (HRVListener l : listeners) {
+            for (HRVWindow w : windows) l.hrvUpdated(w);
+        }
+    }
+
+    /**
+     * Forgets all the intervals, e.g. when the belt reconnects.
+     */
+    public void reset() {
+        for (HRVWindow w : windows) w.reset();
+    }
+
+    public int getWindowCount() {
+        return windows.length;
+    }
+
+    public HRVWindow getWindow(int i) {
+        return windows[i];
+    }
+
+}
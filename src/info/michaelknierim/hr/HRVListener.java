@@ -0,0 +1,14 @@
+package info.michaelknierim.hr;
+
+/**
+ * Receives the HRV of the windows of an HRVEngine after each measurement.
+ */
+public interface HRVListener {
+
+    /**
+     * The window must only be read during the call, it keeps changing
+     * afterwards.
+     */
+    void hrvUpdated(HRVWindow window);
+
+}
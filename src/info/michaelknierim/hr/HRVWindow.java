@@ -0,0 +1,145 @@
+package info.michaelknierim.hr;
+
+/**
+ * Heart rate variability over the RR intervals of a sliding time window.
+ *
+ * The intervals are kept in a ring of ints (1/1024 s) next to integer
+ * running sums, so that adding a beat and dropping the beats which left
+ * the window costs O(1) each, without allocation and without rounding
+ * drift:
+ *
+ *   SDNN   from the sum and the sum of squares of the intervals
+ *   RMSSD  from the sum of squares of the successive differences
+ *   pNN50  from the number of successive differences above 50 ms
+ *
+ * The window is measured in beat time: it holds the latest intervals whose
+ * sum does not exceed its length.
+ */
+public class HRVWindow {
+
+    // Shortest RR interval expected (300 bpm), to size the ring
+    private static final int MIN_RR_MILLIS = 200;
+    // 50 ms in 1/1024 s, times 1000 to stay in integers
+    private static final long NN50_THRESHOLD = 50L * 1024;
+
+    private final long length;
+    private final long lengthUnits;
+    private final int[] ring;
+    private int head = 0; // oldest interval
+    private int count = 0;
+
+    private long sum = 0;
+    private long sumSquares = 0;
+    private long sumDiffSquares = 0;
+    private int nn50 = 0;
+
+    /**
+     * @param length window length in ms
+     */
+    public HRVWindow(long length) {
+        if (length <= 0) throw new IllegalArgumentException("Window length must be positive: " + length);
+        this.length = length;
+        this.lengthUnits = length * 1024 / 1000;
+        this.ring = new int[(int) (length / MIN_RR_MILLIS) + 1];
+    }
+
+    /**
+     * Adds an RR interval (1/1024 s) and drops the oldest ones which no
+     * longer fit in the window.
+     */
+    public void add(int rr) {
+        if (rr <= 0) return;
+        if (count == ring.length) removeOldest();
+        if (count > 0) {
+            long diff = rr - ring[(head + count - 1) % ring.length];
+            sumDiffSquares += diff * diff;
+            if (Math.abs(diff) * 1000 > NN50_THRESHOLD) nn50++;
+        }
+        ring[(head + count) % ring.length] = rr;
+        count++;
+        sum += rr;
+        sumSquares += (long) rr * rr;
+        while (sum > lengthUnits && count > 1) removeOldest();
+    }
+
+    private void removeOldest() {
+        int oldest = ring[head];
+        head = (head + 1) % ring.length;
+        count--;
+        sum -= oldest;
+        sumSquares -= (long) oldest * oldest;
+        if (count > 0) {
+            // The difference between the oldest and the new oldest interval leaves too
+            long diff = ring[head] - oldest;
+            sumDiffSquares -= diff * diff;
+            if (Math.abs(diff) * 1000 > NN50_THRESHOLD) nn50--;
+        }
+    }
+
+    public void reset() {
+        head = 0;
+        count = 0;
+        sum = 0;
+        sumSquares = 0;
+        sumDiffSquares = 0;
+        nn50 = 0;
+    }
+
+    /**
+     * @return window length in ms
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of RR intervals in the window
+     */
+    public int getBeatCount() {
+        return count;
+    }
+
+    /**
+     * @return mean RR interval in ms, NaN if the window is empty
+     */
+    public double getMeanRR() {
+        return count == 0 ? Double.NaN : toMillis((double) sum / count);
+    }
+
+    /**
+     * @return standard deviation of the RR intervals in ms, NaN with fewer
+     * than 2 intervals
+     */
+    public double getSDNN() {
+        if (count < 2) return Double.NaN;
+        double variance = (sumSquares - (double) sum * sum / count) / (count - 1);
+        return toMillis(Math.sqrt(Math.max(variance, 0)));
+    }
+
+    /**
+     * @return root mean square of the successive differences in ms, NaN with
+     * fewer than 2 intervals
+     */
+    public double getRMSSD() {
+        if (count < 2) return Double.NaN;
+        return toMillis(Math.sqrt((double) sumDiffSquares / (count - 1)));
+    }
+
+    /**
+     * @return percentage of successive differences above 50 ms, NaN with
+     * fewer than 2 intervals
+     */
+    public double getPNN50() {
+        if (count < 2) return Double.NaN;
+        return 100.0 * nn50 / (count - 1);
+    }
+
+    private static double toMillis(double units) {
+        return units * 1000.0 / 1024.0;
+    }
+
+    public String toString() {
+        return String.format("HRV %ds: RMSSD=%.1fms SDNN=%.1fms pNN50=%.1f%% (%d beats)",
+                length / 1000, getRMSSD(), getSDNN(), getPNN50(), count);
+    }
+}
@@ -0,0 +1,143 @@
+package info.michaelknierim.hr;
+
+/**
+ * Value of the heart rate measurement characteristic (0x2A37).
+ *
+ * One instance is meant to be reused for every notification: decode() only
+ * fills primitive fields and the RR interval array, which grows only if a
+ * notification carries more intervals than it can hold.
+ */
+public class HeartRateMeasurement {
+
+    // Flags of the first byte
+    public static final int FLAG_HR_UINT16 = 0x01;
+    public static final int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    private int flags;
+    private int heartRate;
+    private int energyExpended;
+    private int[] rrIntervals = new int[9]; // as many as fit in a default ATT notification
+    private int rrCount;
+
+    /**
+     * Parses value[offset .. offset + length - 1].
+     *
+     * @return false if the value is too short for the fields its flags announce
+     */
+    public boolean decode(byte[] value, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        flags = 0;
+        heartRate = 0;
+        rrCount = 0;
+        energyExpended = -1;
+        if (length < 2) return false;
+
+        flags = value[i++] & 0xFF;
+        if ((flags & FLAG_HR_UINT16) != 0) {
+            if (i + 2 > end) return false;
+            heartRate = (value[i] & 0xFF) | ((value[i + 1] & 0xFF) << 8);
+            i += 2;
+        } else {
+            heartRate = value[i++] & 0xFF;
+        }
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (i + 2 > end) return false;
+            energyExpended = (value[i] & 0xFF) | ((value[i + 1] & 0xFF) << 8);
+            i += 2;
+        }
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            int count = (end - i) / 2;
+            if (count > rrIntervals.length) rrIntervals = new int[count];
+            for (; rrCount < count; rrCount++, i += 2) {
+                rrIntervals[rrCount] = (value[i] & 0xFF) | ((value[i + 1] & 0xFF) << 8);
+            }
+        }
+        return true;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return beats per minute
+     */
+    public int getHeartRate() {
+        return heartRate;
+    }
+
+    public boolean isSensorContactSupported() {
+        return (flags & FLAG_SENSOR_CONTACT_SUPPORTED) != 0;
+    }
+
+    /**
+     * @return false only if the sensor supports contact detection and reports
+     * no contact
+     */
+    public boolean isSensorContactDetected() {
+        return !isSensorContactSupported() || (flags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+    }
+
+    public boolean hasEnergyExpended() {
+        return energyExpended >= 0;
+    }
+
+    /**
+     * @return kilojoules since the last reset, or -1 if not present
+     */
+    public int getEnergyExpended() {
+        return energyExpended;
+    }
+
+    public int getRRCount() {
+        return rrCount;
+    }
+
+    // For filters which remove intervals from getRRIntervals()
+    void setRRCount(int count) {
+        if (count < 0 || count > rrIntervals.length) throw new IndexOutOfBoundsException("RR count " + count);
+        rrCount = count;
+    }
+
+    /**
+     * @return RR interval i in units of 1/1024 second
+     */
+    public int getRRInterval(int i) {
+        if (i >= rrCount) throw new IndexOutOfBoundsException("RR interval " + i + " of " + rrCount);
+        return rrIntervals[i];
+    }
+
+    /**
+     * @return RR interval i in milliseconds
+     */
+    public double getRRIntervalMillis(int i) {
+        return getRRInterval(i) * 1000.0 / 1024.0;
+    }
+
+    /**
+     * @return the internal array holding the RR intervals (1/1024 s) in its
+     * first getRRCount() entries. Valid until the next decode.
+     */
+    public int[] getRRIntervals() {
+        return rrIntervals;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("HR=").append(heartRate);
+        if (isSensorContactSupported()) result.append(isSensorContactDetected() ? " contact" : " no contact");
+        if (hasEnergyExpended()) result.append(" energy=").append(energyExpended).append("kJ");
+        if (rrCount > 0) {
+            result.append(" RR=");
+            for (int i = 0; i < rrCount; i++) {
+                if (i > 0) result.append(',');
+                result.append(Math.round(getRRIntervalMillis(i))).append("ms");
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package info.michaelknierim.hr;
+
+import java.util.Arrays;
+
+/**
+ * Flags the RR intervals which differ from the median of the preceding
+ * ones by more than a percentage: missed beats (about twice the median),
+ * extra or ectopic beats (too short) and other bogus values (too long).
+ *
+ * The last intervals are kept in an int ring and in a sorted copy, so every
+ * beat costs O(window) with a constant window and no allocation. Flagged
+ * intervals still enter the window, so that the median follows a sustained
+ * change of rhythm.
+ *
+ * Depending on the correction, a flagged interval is passed on unchanged
+ * (PASS), removed (DROP) or replaced by the median (REPLACE).
+ */
+public class RRArtifactFilter {
+
+    public static final int PASS = 0;
+    public static final int DROP = 1;
+    public static final int REPLACE = 2;
+
+    public static final int DEFAULT_WINDOW = 11;
+    public static final int DEFAULT_THRESHOLD = 20; // %
+
+    private final int[] ring;
+    private final int[] sorted;
+    private int head = 0;
+    private int count = 0;
+    private final int threshold;
+    private int correction = PASS;
+
+    private long beats = 0;
+    private long shortBeats = 0;
+    private long longBeats = 0;
+    private long missedBeats = 0;
+    private long dropped = 0;
+    private long replaced = 0;
+    private boolean lastArtifact = false;
+
+    public RRArtifactFilter() {
+        this(DEFAULT_WINDOW, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param window number of intervals the median is taken over
+     * @param threshold largest accepted difference with the median, in %
+     */
+    public RRArtifactFilter(int window, int threshold) {
+        if (window < 3) throw new IllegalArgumentException("Window too small: " + window);
+        if (threshold <= 0 || threshold >= 100) throw new IllegalArgumentException("Threshold out of range: " + threshold);
+        ring = new int[window];
+        sorted = new int[window];
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param correction PASS, DROP or REPLACE
+     */
+    public void setCorrection(int correction) {
+        if (correction < PASS || correction > REPLACE) throw new IllegalArgumentException("Unknown correction: " + correction);
+        this.correction = correction;
+    }
+
+    public int getCorrection() {
+        return correction;
+    }
+
+    /**
+     * Checks an RR interval (1/1024 s).
+     *
+     * @return the interval to use, or -1 if it is dropped
+     */
+    public int filter(int rr) {
+        beats++;
+        // Judge against the previous intervals only, once there are enough of them
+        int median = count >= ring.length / 2 + 1 ? median() : -1;
+        push(rr);
+        lastArtifact = false;
+        if (median <= 0) return rr;
+
+        long deviation = 100L * (rr - median);
+        if (deviation >= -threshold * (long) median && deviation <= threshold * (long) median) return rr;
+        lastArtifact = true;
+        if (rr < median) {
+            shortBeats++;
+        } else if (Math.abs(100L * (rr - 2 * median)) <= threshold * (long) median) {
+            missedBeats++;
+        } else {
+            longBeats++;
+        }
+        switch (correction) {
+            case DROP:
+                dropped++;
+                return -1;
+            case REPLACE:
+                replaced++;
+                return median;
+            default:
+                return rr;
+        }
+    }
+
+    /**
+     * Filters the RR intervals of a measurement in place.
+     */
+    public void filter(HeartRateMeasurement m) {
+        int[] rr = m.getRRIntervals();
+        int kept = 0;
+        for (int i = 0; i < m.getRRCount(); i++) {
+            int value = filter(rr[i]);
+            if (value >= 0) rr[kept++] = value;
+        }
+        m.setRRCount(kept);
+    }
+
+    private void push(int rr) {
+        if (count == ring.length) {
+            // Take the oldest interval out of the sorted copy
+            int i = Arrays.binarySearch(sorted, 0, count, ring[head]);
+            System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+            count--;
+            ring[head] = rr;
+            head = (head + 1) % ring.length;
+        } else {
+            ring[(head + count) % ring.length] = rr;
+        }
+        int i = Arrays.binarySearch(sorted, 0, count, rr);
+        if (i < 0) i = -i - 1;
+        System.arraycopy(sorted, i, sorted, i + 1, count - i);
+        sorted[i] = rr;
+        count++;
+    }
+
+    private int median() {
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    /**
+     * Forgets the previous intervals, e.g. when the belt reconnects. The
+     * statistics are kept.
+     */
+    public void reset() {
+        head = 0;
+        count = 0;
+        lastArtifact = false;
+    }
+
+    /**
+     * @return true if the last interval given to filter() was flagged
+     */
+    public boolean isLastArtifact() {
+        return lastArtifact;
+    }
+
+    /**
+     * @return the number of intervals checked
+     */
+    public long getBeatCount() {
+        return beats;
+    }
+
+    /**
+     * @return the number of intervals flagged
+     */
+    public long getArtifactCount() {
+        return shortBeats + longBeats + missedBeats;
+    }
+
+    /**
+     * @return the number of intervals flagged as too short (extra or ectopic beats)
+     */
+    public long getShortCount() {
+        return shortBeats;
+    }
+
+    /**
+     * @return the number of intervals flagged as about twice the median
+     */
+    public long getMissedCount() {
+        return missedBeats;
+    }
+
+    /**
+     * @return the number of other intervals flagged as too long
+     */
+    public long getLongCount() {
+        return longBeats;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public long getReplacedCount() {
+        return replaced;
+    }
+
+    public String toString() {
+        return "RR filter: " + getArtifactCount() + " artifacts in " + beats + " beats (" + shortBeats + " short, "
+                + missedBeats + " missed, " + longBeats + " long), " + dropped + " dropped, " + replaced + " replaced";
+    }
+}
@@ -0,0 +1,507 @@
+package info.michaelknierim.storage;
+
+import info.michaelknierim.hr.HeartRateMeasurement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Columnar store of beat-level heart rate data, for long sessions.
+ *
+ * Every row is one beat: timestamp (ms), heart rate (bpm), RR interval
+ * (1/1024 s, 0 when the sensor sent none) and the flags of the heart rate
+ * measurement. Each column is a separate file, so a scan only touches the
+ * columns it needs. Rows are grouped in blocks of BLOCK_ROWS rows, encoded
+ * per column:
+ *
+ *   timestamp  zigzag varint of the difference with the previous row
+ *              (the first timestamp of the block is in the directory)
+ *   heart rate varint
+ *   RR         zigzag varint of the difference with the previous row
+ *   flags      one byte
+ *
+ * The column files are written and read through MappedByteBuffer segments
+ * of SEGMENT_SIZE bytes; a block never spans two segments, so scans decode
+ * the mapped memory directly. The directory file (blocks.idx) has one entry
+ * per block, appended after the block data has been forced to disk. The
+ * entry is also a sparse index of the block: its time range and the minimum,
+ * maximum and sum of its heart rates, so that a query finds its blocks with
+ * a binary search and aggregate() only decodes the blocks which straddle a
+ * window boundary. Rows are expected in time order.
+ *
+ * The rows of the block being filled are kept in memory until the block is
+ * full, flush() or close(); queries see them too. The durable record of
+ * every sample is HRLog, this store is for analysis.
+ */
+public class HRColumnStore implements Closeable {
+
+    public static final int TIMESTAMP = 0x01;
+    public static final int HEART_RATE = 0x02;
+    public static final int RR_INTERVAL = 0x04;
+    public static final int FLAGS = 0x08;
+    public static final int ALL = TIMESTAMP | HEART_RATE | RR_INTERVAL | FLAGS;
+
+    public static final int BLOCK_ROWS = 4096;
+    static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    private static final int COLUMNS = 4;
+    private static final String[] COLUMN_FILES = {"timestamp.col", "hr.col", "rr.col", "flags.col"};
+    // rows, first, min and max timestamp, HR min, max and sum, then offset and length of each column
+    static final int DIRECTORY_ENTRY_SIZE = 4 + 3 * 8 + 4 + 4 + 8 + COLUMNS * (8 + 4);
+    private static final int MAX_VARINT = 10;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final Path directory;
+    private final FileChannel[] columns = new FileChannel[COLUMNS];
+    private final FileChannel index;
+
+    // Writer state, guarded by this
+    private final MappedByteBuffer[] writeSegments = new MappedByteBuffer[COLUMNS];
+    private final long[] writeSegmentStart = new long[COLUMNS];
+    private final long[] columnEnd = new long[COLUMNS];
+    private final long[] timestamps = new long[BLOCK_ROWS];
+    private final int[] heartRates = new int[BLOCK_ROWS];
+    private final int[] rrIntervals = new int[BLOCK_ROWS];
+    private final byte[] flags = new byte[BLOCK_ROWS];
+    private int rows = 0;
+    private final ByteBuffer entry = ByteBuffer.allocate(DIRECTORY_ENTRY_SIZE);
+    private boolean closed = false;
+
+    // Sealed blocks, replaced on every new block so that scans can use a snapshot
+    private volatile List<Block> blocks = new ArrayList<Block>();
+    // Full read-only segments, shared by the queries, keyed by start + column
+    private final ConcurrentHashMap<Long, MappedByteBuffer> readSegments = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+    /**
+     * A block, as described in the directory.
+     */
+    static class Block {
+        int rows;
+        long firstTimestamp;
+        long minTimestamp;
+        long maxTimestamp;
+        int minHeartRate;
+        int maxHeartRate;
+        long sumHeartRate;
+        final long[] offsets = new long[COLUMNS];
+        final int[] lengths = new int[COLUMNS];
+        // Encoded columns of the block being filled, null for sealed blocks
+        ByteBuffer[] pending;
+    }
+
+    public HRColumnStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        for (int c = 0; c < COLUMNS; c++) {
+            columns[c] = FileChannel.open(directory.resolve(COLUMN_FILES[c]), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        index = FileChannel.open(directory.resolve("blocks.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readDirectory();
+    }
+
+    private void readDirectory() throws IOException {
+        List<Block> result = new ArrayList<Block>();
+        long entries = index.size() / DIRECTORY_ENTRY_SIZE;
+        ByteBuffer b = ByteBuffer.allocate(DIRECTORY_ENTRY_SIZE);
+        for (long i = 0; i < entries; i++) {
+            b.clear();
+            while (b.hasRemaining() && index.read(b, i * DIRECTORY_ENTRY_SIZE + b.position()) > 0) ;
+            b.flip();
+            Block block = decodeEntry(b);
+            boolean complete = true;
+            for (int c = 0; c < COLUMNS; c++) {
+                if (block.offsets[c] + block.lengths[c] > columns[c].size()) complete = false;
+            }
+            if (!complete) break;
+            result.add(block);
+        }
+        // Drop a torn directory entry
+        long valid = result.size() * (long) DIRECTORY_ENTRY_SIZE;
+        if (index.size() > valid) {
+            logger.warning("Dropped " + (index.size() - valid) + " bytes of incomplete block entries in " + directory);
+            index.truncate(valid);
+        }
+        index.position(valid);
+        for (int c = 0; c < COLUMNS; c++) {
+            columnEnd[c] = 0;
+            if (!result.isEmpty()) {
+                Block last = result.get(result.size() - 1);
+                columnEnd[c] = last.offsets[c] + last.lengths[c];
+            }
+        }
+        blocks = result;
+    }
+
+    Block decodeEntry(ByteBuffer b) {
+        Block block = new Block();
+        block.rows = b.getInt();
+        block.firstTimestamp = b.getLong();
+        block.minTimestamp = b.getLong();
+        block.maxTimestamp = b.getLong();
+        block.minHeartRate = b.getInt();
+        block.maxHeartRate = b.getInt();
+        block.sumHeartRate = b.getLong();
+        for (int c = 0; c < COLUMNS; c++) {
+            block.offsets[c] = b.getLong();
+            block.lengths[c] = b.getInt();
+        }
+        return block;
+    }
+
+    void encodeEntry(ByteBuffer b, Block block) {
+        b.putInt(block.rows).putLong(block.firstTimestamp).putLong(block.minTimestamp).putLong(block.maxTimestamp);
+        b.putInt(block.minHeartRate).putInt(block.maxHeartRate).putLong(block.sumHeartRate);
+        for (int c = 0; c < COLUMNS; c++) b.putLong(block.offsets[c]).putInt(block.lengths[c]);
+    }
+
+    /* ***********************************************************************
+     * Writing
+     *************************************************************************/
+
+    /**
+     * Appends one row per RR interval of the measurement, or a single row
+     * with an RR interval of 0 if it has none.
+     */
+    public synchronized void append(long timestamp, HeartRateMeasurement m) throws IOException {
+        if (m.getRRCount() == 0) {
+            append(timestamp, m.getHeartRate(), 0, m.getFlags());
+        }
+        for (int i = 0; i < m.getRRCount(); i++) {
+            append(timestamp, m.getHeartRate(), m.getRRInterval(i), m.getFlags());
+        }
+    }
+
+    public synchronized void append(long timestamp, int heartRate, int rrInterval, int flags) throws IOException {
+        if (closed) throw new IOException("Column store closed.");
+        timestamps[rows] = timestamp;
+        heartRates[rows] = heartRate;
+        rrIntervals[rows] = rrInterval;
+        this.flags[rows] = (byte) flags;
+        if (++rows == BLOCK_ROWS) seal();
+    }
+
+    /**
+     * Writes the rows of the current block, even if it is not full.
+     */
+    public synchronized void flush() throws IOException {
+        if (rows > 0) seal();
+    }
+
+    private void seal() throws IOException {
+        Block block = describeRows();
+        ByteBuffer[] out = new ByteBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            out[c] = reserve(c, rows * MAX_VARINT);
+            block.offsets[c] = writeSegmentStart[c] + out[c].position();
+        }
+        encodeRows(out, block.firstTimestamp);
+        for (int c = 0; c < COLUMNS; c++) {
+            block.lengths[c] = (int) (writeSegmentStart[c] + out[c].position() - block.offsets[c]);
+            columnEnd[c] = block.offsets[c] + block.lengths[c];
+            writeSegments[c].force();
+        }
+        // The directory entry is only written once the data is on disk
+        entry.clear();
+        encodeEntry(entry, block);
+        entry.flip();
+        while (entry.hasRemaining()) index.write(entry);
+        index.force(false);
+
+        List<Block> updated = new ArrayList<Block>(blocks);
+        updated.add(block);
+        blocks = updated;
+        rows = 0;
+    }
+
+    // The index part of the entry of the rows being filled
+    private Block describeRows() {
+        Block block = new Block();
+        block.rows = rows;
+        block.firstTimestamp = timestamps[0];
+        block.minTimestamp = Long.MAX_VALUE;
+        block.maxTimestamp = Long.MIN_VALUE;
+        block.minHeartRate = Integer.MAX_VALUE;
+        block.maxHeartRate = Integer.MIN_VALUE;
+        for (int i = 0; i < rows; i++) {
+            block.minTimestamp = Math.min(block.minTimestamp, timestamps[i]);
+            block.maxTimestamp = Math.max(block.maxTimestamp, timestamps[i]);
+            block.minHeartRate = Math.min(block.minHeartRate, heartRates[i]);
+            block.maxHeartRate = Math.max(block.maxHeartRate, heartRates[i]);
+            block.sumHeartRate += heartRates[i];
+        }
+        return block;
+    }
+
+    private void encodeRows(ByteBuffer[] out, long firstTimestamp) {
+        long previous = firstTimestamp;
+        int previousRR = 0;
+        for (int i = 0; i < rows; i++) {
+            writeVarint(out[0], zigzag(timestamps[i] - previous));
+            previous = timestamps[i];
+            writeVarint(out[1], heartRates[i]);
+            writeVarint(out[2], zigzag(rrIntervals[i] - previousRR));
+            previousRR = rrIntervals[i];
+            out[3].put(flags[i]);
+        }
+    }
+
+    // The sealed blocks, followed by the rows being filled if the range needs them
+    private synchronized List<Block> snapshot(long to) {
+        List<Block> snapshot = blocks;
+        if (rows == 0 || timestamps[0] >= to) return snapshot;
+        Block block = describeRows();
+        block.pending = new ByteBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) block.pending[c] = ByteBuffer.allocate(rows * MAX_VARINT);
+        encodeRows(block.pending, block.firstTimestamp);
+        for (int c = 0; c < COLUMNS; c++) block.pending[c].flip();
+        List<Block> result = new ArrayList<Block>(snapshot.size() + 1);
+        result.addAll(snapshot);
+        result.add(block);
+        return result;
+    }
+
+    // Maps the segment of column c in which the next n bytes fit
+    private ByteBuffer reserve(int c, int n) throws IOException {
+        long end = columnEnd[c];
+        MappedByteBuffer segment = writeSegments[c];
+        if (segment == null || end + n > writeSegmentStart[c] + SEGMENT_SIZE) {
+            long start = (end / SEGMENT_SIZE) * SEGMENT_SIZE;
+            if (end + n > start + SEGMENT_SIZE) start += SEGMENT_SIZE; // skip the end of a full segment
+            segment = columns[c].map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_SIZE);
+            writeSegments[c] = segment;
+            writeSegmentStart[c] = start;
+            if (end < start) end = start;
+        }
+        segment.position((int) (end - writeSegmentStart[c]));
+        return segment;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static void writeVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    /**
+     * Writes the current block and closes the store.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        flush();
+        closed = true;
+        for (int c = 0; c < COLUMNS; c++) {
+            writeSegments[c] = null;
+            // Give back the unused end of the last mapped segment
+            try {
+                columns[c].truncate(columnEnd[c]);
+            } catch (IOException e) {
+                logger.fine("Cannot truncate " + COLUMN_FILES[c] + " while it is mapped: " + e);
+            }
+            columns[c].close();
+        }
+        index.close();
+        readSegments.clear();
+    }
+
+    /* ***********************************************************************
+     * Reading
+     *************************************************************************/
+
+    /**
+     * @return the number of rows in the sealed blocks
+     */
+    public long getRowCount() {
+        long total = 0;
+        for (Block b : blocks) total += b.rows;
+        return total;
+    }
+
+    List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Scans the rows with from <= timestamp < to, decoding only the given
+     * columns (the timestamp column is always decoded).
+     */
+    public Cursor scan(long from, long to, int columns) throws IOException {
+        List<Block> snapshot = snapshot(to);
+        return new Cursor(snapshot, firstBlock(snapshot, from), from, to, columns | TIMESTAMP);
+    }
+
+    /**
+     * Aggregates the heart rates of the rows with from <= timestamp < to in
+     * windows of the given length (ms), starting at from. The blocks which
+     * lie in a single window are taken from the index without decoding them.
+     */
+    public HRWindows aggregate(long from, long to, long window) throws IOException {
+        HRWindows result = new HRWindows(from, to, window);
+        List<Block> snapshot = snapshot(to);
+        Cursor cursor = new Cursor(snapshot, 0, from, to, TIMESTAMP | HEART_RATE);
+        for (int i = firstBlock(snapshot, from); i < snapshot.size(); i++) {
+            Block b = snapshot.get(i);
+            if (b.minTimestamp >= to) break;
+            if (b.minTimestamp >= from && b.maxTimestamp < to && result.indexOf(b.minTimestamp) == result.indexOf(b.maxTimestamp)) {
+                result.add(result.indexOf(b.minTimestamp), b.rows, b.minHeartRate, b.maxHeartRate, b.sumHeartRate);
+            } else {
+                cursor.open(i);
+                while (cursor.nextInBlock()) result.add(cursor.getTimestamp(), cursor.getHeartRate());
+            }
+        }
+        return result;
+    }
+
+    // Index of the first block which ends at or after from
+    private static int firstBlock(List<Block> blocks, long from) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).maxTimestamp < from) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Maps the segment of column c holding the given bytes
+    private ByteBuffer map(int c, long offset, int length) throws IOException {
+        long start = (offset / SEGMENT_SIZE) * SEGMENT_SIZE;
+        MappedByteBuffer segment = readSegments.get(start + c);
+        if (segment == null) {
+            long size = Math.min(SEGMENT_SIZE, columns[c].size() - start);
+            segment = columns[c].map(FileChannel.MapMode.READ_ONLY, start, size);
+            // The last segment of a reopened store may still grow
+            if (size == SEGMENT_SIZE) readSegments.put(start + c, segment);
+        }
+        ByteBuffer b = segment.duplicate();
+        b.position((int) (offset - start));
+        b.limit((int) (offset - start + length));
+        return b;
+    }
+
+    /**
+     * Iterates over rows, decoding them from the mapped column files.
+     */
+    public class Cursor {
+
+        private final List<Block> blocks;
+        private final long from;
+        private final long to;
+        private final int columnMask;
+        private final ByteBuffer[] in = new ByteBuffer[COLUMNS];
+
+        private int blockIndex;
+        private int rowsLeft = 0;
+        private long timestamp;
+        private int heartRate;
+        private int rrInterval;
+        private int rowFlags;
+
+        Cursor(List<Block> blocks, int firstBlock, long from, long to, int columnMask) {
+            this.blocks = blocks;
+            this.blockIndex = firstBlock - 1;
+            this.from = from;
+            this.to = to;
+            this.columnMask = columnMask;
+        }
+
+        /**
+         * Moves to the next row in the range.
+         *
+         * @return false when there is none
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (nextInBlock()) return true;
+                if (blockIndex >= blocks.size()) return false;
+                if (++blockIndex == blocks.size() || blocks.get(blockIndex).minTimestamp >= to) {
+                    blockIndex = blocks.size(); // rows are appended in time order
+                    return false;
+                }
+                open(blockIndex);
+            }
+        }
+
+        // Moves to the next row of the range in the current block
+        boolean nextInBlock() {
+            while (rowsLeft > 0) {
+                readRow();
+                if (timestamp >= from && timestamp < to) return true;
+            }
+            return false;
+        }
+
+        void open(int index) throws IOException {
+            Block b = blocks.get(index);
+            for (int c = 0; c < COLUMNS; c++) {
+                if ((columnMask & (1 << c)) == 0) continue;
+                in[c] = b.pending != null ? b.pending[c].duplicate() : map(c, b.offsets[c], b.lengths[c]);
+            }
+            blockIndex = index;
+            rowsLeft = b.rows;
+            timestamp = b.firstTimestamp;
+            rrInterval = 0;
+        }
+
+        private void readRow() {
+            rowsLeft--;
+            timestamp += unzigzag(readVarint(in[0]));
+            if ((columnMask & HEART_RATE) != 0) heartRate = (int) readVarint(in[1]);
+            if ((columnMask & RR_INTERVAL) != 0) rrInterval += (int) unzigzag(readVarint(in[2]));
+            if ((columnMask & FLAGS) != 0) rowFlags = in[3].get() & 0xFF;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getHeartRate() {
+            return heartRate;
+        }
+
+        /**
+         * @return the RR interval in 1/1024 s, 0 if the row has none
+         */
+        public int getRRInterval() {
+            return rrInterval;
+        }
+
+        public int getFlags() {
+            return rowFlags;
+        }
+    }
+
+    static long readVarint(ByteBuffer b) {
+        long result = 0;
+        int shift = 0;
+        byte v;
+        do {
+            v = b.get();
+            result |= (long) (v & 0x7F) << shift;
+            shift += 7;
+        } while (v < 0);
+        return result;
+    }
+
+}
@@ -0,0 +1,324 @@
+package info.michaelknierim.storage;
+
+import info.michaelknierim.hr.HeartRateMeasurement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of heart rate samples and RR intervals.
+ *
+ * The log is a directory of segment files (hr-000001.log, hr-000002.log...),
+ * each one starting with a small header followed by fixed-size records:
+ *
+ *   timestamp  8 bytes, ms since the epoch
+ *   belt       2 bytes
+ *   kind       1 byte, HEART_RATE or RR_INTERVAL
+ *   flags      1 byte, flags of the heart rate measurement
+ *   value      4 bytes, bpm or RR interval in 1/1024 s
+ *   extra      4 bytes, energy expended in kJ (-1 if absent) for HEART_RATE
+ *   crc        4 bytes, CRC32 of the 20 previous bytes
+ *
+ * Records are buffered in memory and committed in groups: the buffer is
+ * written and forced to disk once commitSamples records are pending, or
+ * commitInterval ms after the first pending record, whichever comes first.
+ * A crash therefore loses at most the records of the current commit
+ * window. When the log is opened again, the last segment is checked and
+ * cut after its last complete record with a valid CRC. When a commit fails,
+ * the records which did not reach the file stay pending and are written by
+ * the next commit; appends fail while the buffer is full of them.
+ */
+public class HRLog implements Closeable {
+
+    public static final byte HEART_RATE = 1;
+    public static final byte RR_INTERVAL = 2;
+
+    public static final int RECORD_SIZE = 24;
+    static final byte[] MAGIC = {'H', 'R', 'L', 'G'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8; // magic, version, 3 reserved bytes
+
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final Path directory;
+    private final long commitInterval;
+    private final int commitSamples;
+    private final long segmentSize;
+
+    private FileChannel segment;
+    private int segmentNumber;
+    private long segmentLength;
+
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private int pending = 0;
+    private long firstPending = 0; // ms
+    private long recovered = 0;
+    private long records = 0;
+    private boolean closed = false;
+
+    private final ScheduledExecutorService committer;
+
+    /**
+     * Opens or creates the log in directory.
+     *
+     * @param commitInterval maximum delay (ms) before a record is on disk
+     * @param commitSamples number of records committed together at most
+     */
+    public HRLog(Path directory, long commitInterval, int commitSamples) throws IOException {
+        this(directory, commitInterval, commitSamples, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public HRLog(Path directory, long commitInterval, int commitSamples, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.commitInterval = commitInterval;
+        this.commitSamples = commitSamples;
+        this.segmentSize = segmentSize;
+        if (commitSamples < 1 || segmentSize < HEADER_SIZE + RECORD_SIZE) throw new IllegalArgumentException("Invalid log parameters.");
+        this.buffer = ByteBuffer.allocateDirect(commitSamples * RECORD_SIZE);
+        Files.createDirectories(directory);
+        openLastSegment();
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HR log commit");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                commitIfDue();
+            }
+        }, commitInterval, Math.max(1, commitInterval / 4), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the segment files of the log directory, in order
+     */
+    public static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> result = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) return result;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "hr-*.log")) {
+            for (Path f : files) result.add(f);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private void openLastSegment() throws IOException {
+        List<Path> segments = listSegments(directory);
+        if (segments.isEmpty()) {
+            newSegment(1);
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        String name = last.getFileName().toString();
+        segmentNumber = Integer.parseInt(name.substring(3, name.length() - 4));
+        segment = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = segment.size();
+        long valid = validLength(segment);
+        if (valid < HEADER_SIZE) { // not even a header, start the segment again
+            segment.truncate(0);
+            writeHeader(segment);
+            valid = HEADER_SIZE;
+        }
+        if (valid < size) {
+            recovered = size - valid;
+            segment.truncate(valid);
+            segment.force(true);
+            logger.warning("Recovered " + last + ": " + recovered + " bytes of incomplete records dropped.");
+        }
+        segmentLength = valid;
+        segment.position(valid);
+    }
+
+    // Length of the header and of the complete records with a valid CRC
+    private long validLength(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE) return 0;
+        for (byte b : MAGIC) {
+            if (header.get() != b) throw new IOException("Not a heart rate log segment.");
+        }
+        ByteBuffer block = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        long position = HEADER_SIZE;
+        while (true) {
+            block.clear();
+            int n = channel.read(block, position);
+            if (n < RECORD_SIZE) return position;
+            block.flip();
+            while (block.remaining() >= RECORD_SIZE) {
+                if (!checkRecord(block, crc)) return position;
+                position += RECORD_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Checks the CRC of the record at the position of b, and moves past it.
+     */
+    static boolean checkRecord(ByteBuffer b, CRC32 crc) {
+        int start = b.position();
+        crc.reset();
+        for (int i = 0; i < RECORD_SIZE - 4; i++) crc.update(b.get(start + i));
+        boolean valid = (int) crc.getValue() == b.getInt(start + RECORD_SIZE - 4);
+        b.position(start + RECORD_SIZE);
+        return valid;
+    }
+
+    // The current segment is only replaced once the new one is durable. A
+    // file left by a failed attempt is started again.
+    private void newSegment(int number) throws IOException {
+        Path file = directory.resolve(String.format("hr-%06d.log", number));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writeHeader(channel);
+            // Make the new file itself durable
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        segment = channel;
+        segmentNumber = number;
+        segmentLength = HEADER_SIZE;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION).put((byte) 0).put((byte) 0).put((byte) 0);
+        header.flip();
+        while (header.hasRemaining()) channel.write(header, header.position());
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * @return the number of bytes dropped from the tail of the log when it
+     * was opened
+     */
+    public long getRecoveredBytes() {
+        return recovered;
+    }
+
+    /**
+     * @return the number of records appended since the log was opened
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Appends the heart rate and all the RR intervals of a measurement.
+     */
+    public synchronized void append(long timestamp, int belt, HeartRateMeasurement m) throws IOException {
+        appendRecord(timestamp, belt, HEART_RATE, m.getFlags(), m.getHeartRate(), m.getEnergyExpended());
+        for (int i = 0; i < m.getRRCount(); i++) {
+            appendRecord(timestamp, belt, RR_INTERVAL, m.getFlags(), m.getRRInterval(i), -1);
+        }
+    }
+
+    public synchronized void appendRecord(long timestamp, int belt, byte kind, int flags, int value, int extra) throws IOException {
+        if (closed) throw new IOException("Heart rate log closed.");
+        if (buffer.remaining() < RECORD_SIZE) commit(); // full of records a failed commit left behind
+        int start = buffer.position();
+        buffer.putLong(timestamp).putShort((short) belt).put(kind).put((byte) flags).putInt(value).putInt(extra);
+        crc.reset();
+        for (int i = start; i < start + RECORD_SIZE - 4; i++) crc.update(buffer.get(i));
+        buffer.putInt((int) crc.getValue());
+        records++;
+        if (pending++ == 0) firstPending = System.currentTimeMillis();
+        if (pending >= commitSamples) commit();
+    }
+
+    private synchronized void commitIfDue() {
+        try {
+            if (pending > 0 && System.currentTimeMillis() - firstPending >= commitInterval) commit();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Heart rate log commit failed.", e);
+        }
+    }
+
+    /**
+     * Writes the pending records and forces them to disk.
+     */
+    public synchronized void commit() throws IOException {
+        if (pending == 0 || closed) return;
+        buffer.flip();
+        int end = buffer.limit();
+        try {
+            while (buffer.position() < end) {
+                // Never split a record between two segments
+                if (segmentLength >= segmentSize) {
+                    FileChannel previous = segment;
+                    previous.force(false);
+                    newSegment(segmentNumber + 1);
+                    previous.close();
+                }
+                long room = Math.max(RECORD_SIZE, (segmentSize - segmentLength) / RECORD_SIZE * RECORD_SIZE);
+                buffer.limit((int) Math.min(end, buffer.position() + room));
+                while (buffer.hasRemaining()) segmentLength += segment.write(buffer);
+                buffer.limit(end);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            keepUnwritten(end);
+            throw e;
+        }
+        buffer.clear();
+        pending = 0;
+    }
+
+    // Puts the records which did not reach the file back at the start of the
+    // buffer, after cutting a record written in part from the segment.
+    private void keepUnwritten(int end) {
+        long torn = (segmentLength - HEADER_SIZE) % RECORD_SIZE;
+        if (torn > 0) {
+            try {
+                segment.truncate(segmentLength - torn);
+                segment.position(segmentLength - torn);
+                segmentLength -= torn;
+                buffer.position(buffer.position() - (int) torn);
+            } catch (IOException e) {
+                // Cut when the log is opened again, the records after it are lost then
+                logger.log(Level.SEVERE, "Heart rate log could not drop a partial record.", e);
+            }
+        }
+        buffer.limit(end);
+        buffer.compact();
+        pending = (buffer.position() + RECORD_SIZE - 1) / RECORD_SIZE;
+    }
+
+    /**
+     * Commits the pending records and closes the log.
+     */
+    public void close() throws IOException {
+        committer.shutdown();
+        synchronized (this) {
+            if (closed) return;
+            commit();
+            closed = true;
+            segment.close();
+        }
+    }
+
+}
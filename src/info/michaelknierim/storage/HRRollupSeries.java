@@ -0,0 +1,84 @@
+package info.michaelknierim.storage;
+
+import java.util.Arrays;
+
+/**
+ * Heart rate rollups of one belt at one resolution, as returned by
+ * HRRollupStore.query(): one entry per non-empty bucket, in time order.
+ */
+public class HRRollupSeries {
+
+    private final long resolution;
+    private int size = 0;
+    private long[] starts = new long[16];
+    private int[] counts = new int[16];
+    private int[] minimums = new int[16];
+    private int[] maximums = new int[16];
+    private long[] sums = new long[16];
+    private int[] lasts = new int[16];
+
+    HRRollupSeries(long resolution) {
+        this.resolution = resolution;
+    }
+
+    void add(long start, int count, int min, int max, long sum, int last) {
+        if (size == starts.length) {
+            int n = size * 2;
+            starts = Arrays.copyOf(starts, n);
+            counts = Arrays.copyOf(counts, n);
+            minimums = Arrays.copyOf(minimums, n);
+            maximums = Arrays.copyOf(maximums, n);
+            sums = Arrays.copyOf(sums, n);
+            lasts = Arrays.copyOf(lasts, n);
+        }
+        starts[size] = start;
+        counts[size] = count;
+        minimums[size] = min;
+        maximums[size] = max;
+        sums[size] = sum;
+        lasts[size] = last;
+        size++;
+    }
+
+    /**
+     * @return bucket length in ms
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * @return the number of samples in bucket i
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    public int getMin(int i) {
+        return minimums[i];
+    }
+
+    public int getMax(int i) {
+        return maximums[i];
+    }
+
+    public double getMean(int i) {
+        return (double) sums[i] / counts[i];
+    }
+
+    /**
+     * @return the heart rate of the last sample of bucket i
+     */
+    public int getLast(int i) {
+        return lasts[i];
+    }
+
+}
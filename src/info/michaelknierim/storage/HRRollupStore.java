@@ -0,0 +1,307 @@
+package info.michaelknierim.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Heart rate rollups of every belt at 1 s, 10 s, 1 min and 10 min, updated
+ * as the samples arrive, for charts over long sessions.
+ *
+ * Each belt has a sub-directory named like in HRSessionStore, with one file
+ * per resolution holding one 24-byte record per non-empty bucket:
+ *
+ *   start  8 bytes, ms since the epoch, a multiple of the resolution
+ *   count  4 bytes
+ *   sum    4 bytes
+ *   min    2 bytes
+ *   max    2 bytes
+ *   last   2 bytes
+ *   (2 bytes unused)
+ *
+ * Finished buckets are buffered and written when the buffer is full, on
+ * flush() and on close(). flush() also writes the current bucket after the
+ * finished ones, where it is rewritten in place until it is finished, and
+ * it runs every flushInterval ms like the commits of HRLog. Queries see the
+ * buffered and the current buckets. A crash loses the samples of the last
+ * flushInterval, which can be rebuilt from HRLog.
+ */
+public class HRRollupStore implements Closeable {
+
+    public static final long[] RESOLUTIONS = {1000, 10000, 60000, 600000};
+    private static final String[] FILES = {"1s.rollup", "10s.rollup", "1min.rollup", "10min.rollup"};
+    static final int RECORD_SIZE = 24;
+    private static final int BUFFER_RECORDS = 256;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final Path directory;
+    private final Map<String, Level[]> belts = new HashMap<String, Level[]>();
+    private boolean closed = false;
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * The file and the current bucket of one belt at one resolution.
+     */
+    private static class Level {
+        final long resolution;
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+        long records; // finished buckets in the file, the current one may follow them
+        boolean dirty; // current bucket changed since it was last written
+
+        long start = -1; // of the current bucket, -1 when empty
+        int count;
+        long sum;
+        int min;
+        int max;
+        int last;
+
+        Level(long resolution, FileChannel channel) {
+            this.resolution = resolution;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param flushInterval maximum delay (ms) before a sample is on disk
+     */
+    public HRRollupStore(Path directory, long flushInterval) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HR rollup flush");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushIfOpen();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private Level[] levels(String belt) throws IOException {
+        if (closed) throw new IOException("Rollup store closed.");
+        String name = HRSessionStore.directoryName(belt);
+        Level[] result = belts.get(name);
+        if (result == null) {
+            Path dir = directory.resolve(name);
+            Files.createDirectories(dir);
+            result = new Level[RESOLUTIONS.length];
+            for (int i = 0; i < result.length; i++) {
+                FileChannel channel = FileChannel.open(dir.resolve(FILES[i]), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long size = channel.size();
+                if (size % RECORD_SIZE != 0) {
+                    logger.warning("Dropped " + (size % RECORD_SIZE) + " bytes of a torn record in " + dir.resolve(FILES[i]));
+                    size -= size % RECORD_SIZE;
+                    channel.truncate(size);
+                }
+                Level level = new Level(RESOLUTIONS[i], channel);
+                level.records = size / RECORD_SIZE;
+                if (level.records > 0) resume(level);
+                result[i] = level;
+            }
+            belts.put(name, result);
+        }
+        return result;
+    }
+
+    // Makes the last bucket of the file current again, so that the samples of a resumed session join it.
+    // It stays in the file and is rewritten in place.
+    private static void resume(Level level) throws IOException {
+        ByteBuffer b = readRecord(level, level.records - 1, ByteBuffer.allocate(RECORD_SIZE));
+        b.flip();
+        level.start = b.getLong();
+        level.count = b.getInt();
+        level.sum = b.getInt() & 0xFFFFFFFFL;
+        level.min = b.getShort() & 0xFFFF;
+        level.max = b.getShort() & 0xFFFF;
+        level.last = b.getShort() & 0xFFFF;
+        level.records--;
+    }
+
+    /**
+     * Adds a heart rate sample of the belt to every resolution.
+     */
+    public synchronized void append(String belt, long timestamp, int heartRate) throws IOException {
+        for (Level level : levels(belt)) {
+            long start = timestamp - Math.floorMod(timestamp, level.resolution);
+            if (level.start >= 0 && start > level.start) finish(level);
+            if (level.start < 0) {
+                level.start = start;
+                level.min = heartRate;
+                level.max = heartRate;
+            }
+            // A sample older than the current bucket (clock change) is counted in it
+            level.count++;
+            level.sum += heartRate;
+            level.min = Math.min(level.min, heartRate);
+            level.max = Math.max(level.max, heartRate);
+            level.last = heartRate;
+            level.dirty = true;
+        }
+    }
+
+    private void finish(Level level) throws IOException {
+        if (!level.buffer.hasRemaining()) write(level);
+        level.buffer.putLong(level.start).putInt(level.count).putInt((int) level.sum)
+                .putShort((short) level.min).putShort((short) level.max).putShort((short) level.last).putShort((short) 0);
+        level.start = -1;
+        level.count = 0;
+        level.sum = 0;
+    }
+
+    // Writes the finished buckets after the ones in the file, over the current bucket if it was written
+    private void write(Level level) throws IOException {
+        level.buffer.flip();
+        long position = level.records * RECORD_SIZE;
+        while (level.buffer.hasRemaining()) position += level.channel.write(level.buffer, position);
+        level.records = position / RECORD_SIZE;
+        level.buffer.clear();
+    }
+
+    private static void writeCurrent(Level level) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_SIZE);
+        b.putLong(level.start).putInt(level.count).putInt((int) level.sum)
+                .putShort((short) level.min).putShort((short) level.max).putShort((short) level.last).putShort((short) 0);
+        b.flip();
+        long position = level.records * RECORD_SIZE;
+        while (b.hasRemaining()) position += level.channel.write(b, position);
+        level.dirty = false;
+    }
+
+    /**
+     * Returns the buckets of the belt at the given resolution (one of
+     * RESOLUTIONS) which start in [from, to).
+     */
+    public synchronized HRRollupSeries query(String belt, long from, long to, long resolution) throws IOException {
+        Level level = null;
+        for (Level l : levels(belt)) {
+            if (l.resolution == resolution) level = l;
+        }
+        if (level == null) throw new IllegalArgumentException("No rollup at " + resolution + " ms");
+
+        HRRollupSeries result = new HRRollupSeries(resolution);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        // Buckets are in time order, the first one in the range is found by bisection
+        long low = 0;
+        long high = level.records;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (readRecord(level, mid, record).getLong(0) < from) low = mid + 1;
+            else high = mid;
+        }
+        ByteBuffer range = ByteBuffer.allocate(RECORD_SIZE * 64);
+        for (long i = low; i < level.records; ) {
+            range.clear();
+            long n = Math.min(64, level.records - i);
+            range.limit((int) n * RECORD_SIZE);
+            while (range.hasRemaining() && level.channel.read(range, i * RECORD_SIZE + range.position()) > 0) ;
+            range.flip();
+            if (!addRecords(result, range, from, to)) return result;
+            i += n;
+        }
+        ByteBuffer buffered = level.buffer.duplicate();
+        buffered.flip();
+        if (!addRecords(result, buffered, from, to)) return result;
+        if (level.start >= from && level.start < to) {
+            result.add(level.start, level.count, level.min, level.max, level.sum, level.last);
+        }
+        return result;
+    }
+
+    private static ByteBuffer readRecord(Level level, long i, ByteBuffer record) throws IOException {
+        record.clear();
+        while (record.hasRemaining() && level.channel.read(record, i * RECORD_SIZE + record.position()) > 0) ;
+        return record;
+    }
+
+    // @return false once a bucket starts at or after to
+    private static boolean addRecords(HRRollupSeries result, ByteBuffer b, long from, long to) {
+        while (b.remaining() >= RECORD_SIZE) {
+            long start = b.getLong();
+            int count = b.getInt();
+            int sum = b.getInt();
+            int min = b.getShort() & 0xFFFF;
+            int max = b.getShort() & 0xFFFF;
+            int last = b.getShort() & 0xFFFF;
+            b.getShort();
+            if (start >= to) return false;
+            if (start >= from) result.add(start, count, min, max, sum & 0xFFFFFFFFL, last);
+        }
+        return true;
+    }
+
+    /**
+     * @return the finest resolution giving at most maxPoints buckets over
+     * [from, to), or the coarsest one
+     */
+    public static long selectResolution(long from, long to, int maxPoints) {
+        for (long r : RESOLUTIONS) {
+            if ((to - from + r - 1) / r <= maxPoints) return r;
+        }
+        return RESOLUTIONS[RESOLUTIONS.length - 1];
+    }
+
+    /**
+     * Writes the finished and the current buckets of every belt which
+     * changed since the last flush.
+     */
+    public synchronized void flush() throws IOException {
+        for (Level[] levels : belts.values()) {
+            for (Level level : levels) {
+                if (level.buffer.position() == 0 && !level.dirty) continue;
+                write(level);
+                if (level.start >= 0) writeCurrent(level);
+                level.channel.force(false);
+            }
+        }
+    }
+
+    private synchronized void flushIfOpen() {
+        if (closed) return;
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.log(java.util.logging.Level.SEVERE, "Heart rate rollups could not be written.", e);
+        }
+    }
+
+    /**
+     * Writes all the buckets, including the current ones, and closes the
+     * files. The last bucket of each file becomes current again when the
+     * belt is next used.
+     */
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        if (closed) return;
+        for (Level[] levels : belts.values()) {
+            for (Level level : levels) {
+                if (level.start >= 0) finish(level);
+            }
+        }
+        flush();
+        for (Level[] levels : belts.values()) {
+            for (Level level : levels) level.channel.close();
+        }
+        belts.clear();
+        closed = true;
+    }
+
+}
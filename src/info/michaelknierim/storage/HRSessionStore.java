@@ -0,0 +1,139 @@
+package info.michaelknierim.storage;
+
+import info.michaelknierim.hr.HeartRateMeasurement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The column stores of several belts, one sub-directory per belt named
+ * after its address (00-18-31-f0-ee-be), opened when first used:
+ *
+ *   sessions.aggregate("0:18:31:f0:ee:be", from, from + 5 * 60000, 60000)
+ *
+ * Belt addresses are accepted with or without leading zeros, with ':' or
+ * '-' separators.
+ */
+public class HRSessionStore implements Closeable {
+
+    private final Path directory;
+    private final Map<String, HRColumnStore> stores = new HashMap<String, HRColumnStore>();
+    private boolean closed = false;
+
+    public HRSessionStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return the store of the belt, created if needed
+     */
+    public synchronized HRColumnStore getStore(String belt) throws IOException {
+        if (closed) throw new IOException("Session store closed.");
+        String name = directoryName(belt);
+        HRColumnStore store = stores.get(name);
+        if (store == null) {
+            store = new HRColumnStore(directory.resolve(name));
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    /**
+     * @return the addresses of the belts which have a store, as 00:18:31:f0:ee:be
+     */
+    public List<String> getBelts() throws IOException {
+        List<String> result = new ArrayList<String>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path p : entries) {
+                String name = p.getFileName().toString();
+                if (Files.isDirectory(p) && isDirectoryName(name)) result.add(name.replace('-', ':'));
+            }
+        } finally {
+            entries.close();
+        }
+        return result;
+    }
+
+    public void append(String belt, long timestamp, HeartRateMeasurement m) throws IOException {
+        getStore(belt).append(timestamp, m);
+    }
+
+    /**
+     * @see HRColumnStore#scan(long, long, int)
+     */
+    public HRColumnStore.Cursor scan(String belt, long from, long to, int columns) throws IOException {
+        return getStore(belt).scan(from, to, columns);
+    }
+
+    /**
+     * @see HRColumnStore#aggregate(long, long, long)
+     */
+    public HRWindows aggregate(String belt, long from, long to, long window) throws IOException {
+        return getStore(belt).aggregate(from, to, window);
+    }
+
+    /**
+     * Writes the pending rows of every belt.
+     */
+    public synchronized void flush() throws IOException {
+        for (HRColumnStore store : stores.values()) store.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        IOException error = null;
+        for (HRColumnStore store : stores.values()) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        stores.clear();
+        if (error != null) throw error;
+    }
+
+    private static boolean isDirectoryName(String name) {
+        try {
+            return name.equals(directoryName(name));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the normalized address, with two digits per byte and '-' separators
+     */
+    static String directoryName(String belt) {
+        StringBuilder sb = new StringBuilder(17);
+        int digits = 0;
+        int parts = 0;
+        for (int i = 0; i <= belt.length(); i++) {
+            char ch = i < belt.length() ? Character.toLowerCase(belt.charAt(i)) : ':';
+            if (ch == ':' || ch == '-') {
+                if (digits == 0 || digits > 2 || ++parts > 6) throw new IllegalArgumentException("Not a belt address: " + belt);
+                if (digits == 1) sb.insert(sb.length() - 1, '0');
+                if (parts < 6) sb.append('-');
+                digits = 0;
+            } else if ((ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f')) {
+                sb.append(ch);
+                digits++;
+            } else {
+                throw new IllegalArgumentException("Not a belt address: " + belt);
+            }
+        }
+        if (parts != 6) throw new IllegalArgumentException("Not a belt address: " + belt);
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,101 @@
+package info.michaelknierim.storage;
+
+/**
+ * Heart rate statistics of consecutive time windows of the same length, as
+ * returned by HRColumnStore.aggregate(). Window i covers
+ * [getStart(i), getStart(i) + getWindowLength()), the last one is cut at
+ * the end of the range.
+ */
+public class HRWindows {
+
+    private final long from;
+    private final long to;
+    private final long window;
+    private final int[] counts;
+    private final int[] minimums;
+    private final int[] maximums;
+    private final long[] sums;
+
+    HRWindows(long from, long to, long window) {
+        if (window <= 0) throw new IllegalArgumentException("Window length must be positive: " + window);
+        if (to < from) throw new IllegalArgumentException("Empty range: " + from + " to " + to);
+        long n = (to - from + window - 1) / window;
+        if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many windows: " + n);
+        this.from = from;
+        this.to = to;
+        this.window = window;
+        counts = new int[(int) n];
+        minimums = new int[(int) n];
+        maximums = new int[(int) n];
+        sums = new long[(int) n];
+    }
+
+    int indexOf(long timestamp) {
+        return (int) ((timestamp - from) / window);
+    }
+
+    void add(long timestamp, int heartRate) {
+        add(indexOf(timestamp), 1, heartRate, heartRate, heartRate);
+    }
+
+    void add(int i, int count, int min, int max, long sum) {
+        if (counts[i] == 0) {
+            minimums[i] = min;
+            maximums[i] = max;
+        } else {
+            minimums[i] = Math.min(minimums[i], min);
+            maximums[i] = Math.max(maximums[i], max);
+        }
+        counts[i] += count;
+        sums[i] += sum;
+    }
+
+    public int getWindowCount() {
+        return counts.length;
+    }
+
+    public long getWindowLength() {
+        return window;
+    }
+
+    public long getStart(int i) {
+        return from + i * window;
+    }
+
+    public long getEnd(int i) {
+        return Math.min(to, getStart(i) + window);
+    }
+
+    /**
+     * @return the number of rows (beats) in window i
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * @return the lowest heart rate in window i, 0 if it is empty
+     */
+    public int getMin(int i) {
+        return minimums[i];
+    }
+
+    /**
+     * @return the highest heart rate in window i, 0 if it is empty
+     */
+    public int getMax(int i) {
+        return maximums[i];
+    }
+
+    public long getSum(int i) {
+        return sums[i];
+    }
+
+    /**
+     * @return the mean heart rate in window i, NaN if it is empty
+     */
+    public double getMean(int i) {
+        return counts[i] == 0 ? Double.NaN : (double) sums[i] / counts[i];
+    }
+
+}
@@ -16,40 +16,110 @@
 package org.thingml.bglib;
 
 /**
+ * A Bluetooth device address. The 6 bytes are held in a long, the first
+ * byte on the wire being the least significant one, so that addresses can
+ * be compared and used as map keys without allocation. The string form is
+ * the legacy one, lower case without leading zeros (0:18:31:f0:ee:be), and
+ * is only built once.
  *
  * @author Franck FLEUREY (SINTEF)
  */
 public class BDAddr {
-   
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Parses an address like 00:18:31:F0:EE:BE, with or without leading
+     * zeros, in upper or lower case.
+     */
     public static BDAddr fromString(String addr) {
-        String[] bytes = addr.split(":");
-        if (bytes.length != 6) {
-            throw new Error ("Invalid Bluetooth address format.");
-        }
-        byte[] byte_addr = new byte[6];
-        for (int i=0; i<6; i++) {
-            byte_addr[5-i] = (byte)Integer.parseInt(bytes[i], 16);
+        long value = 0;
+        int parts = 0;
+        int digits = 0;
+        for (int i = 0; i <= addr.length(); i++) {
+            char c = i < addr.length() ? addr.charAt(i) : ':';
+            int d = Character.digit(c, 16);
+            if (d >= 0 && digits < 2) {
+                value = (value << 4) | d;
+                digits++;
+            } else if (c == ':' && digits > 0 && parts < 6) {
+                // A single digit byte was shifted by 4 bits only
+                if (digits == 1) value = ((value >>> 4) << 8) | (value & 0xF);
+                parts++;
+                digits = 0;
+            } else {
+                throw new IllegalArgumentException("Invalid Bluetooth address format: " + addr);
+            }
         }
-        return new BDAddr(byte_addr);
+        if (parts != 6) throw new IllegalArgumentException("Invalid Bluetooth address format: " + addr);
+        return new BDAddr(value);
     }
-    
-    protected byte[] byte_addr;
-    
-    public byte[] getByteAddr() {
-        return byte_addr;
+
+    private final long value;
+    private String string; // built on first use, races only build it twice
+
+    public BDAddr(long value) {
+        this.value = value & 0xFFFFFFFFFFFFL;
     }
-    
+
+    /**
+     * @param addr the 6 bytes in wire order
+     */
     public BDAddr(byte[] addr) {
-        byte_addr = addr;
+        long result = 0;
+        for (int i = 5; i >= 0; i--) result = (result << 8) | (addr[i] & 0xFF);
+        value = result;
+    }
+
+    /**
+     * @return a new array with the 6 bytes in wire order
+     */
+    public byte[] getByteAddr() {
+        byte[] result = new byte[6];
+        for (int i = 0; i < 6; i++) result[i] = (byte) (value >>> (8 * i));
+        return result;
     }
-    
+
+    /**
+     * @return byte i of the address in wire order
+     */
+    public int getByte(int i) {
+        return (int) (value >>> (8 * i)) & 0xFF;
+    }
+
+    /**
+     * @return the 48 bits of the address in a long, the first byte on the
+     * wire being the least significant one, e.g. as a LongHashMap key
+     */
+    public long toLong() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BDAddr && ((BDAddr) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
     public String toString() {
-        StringBuffer result = new StringBuffer();
-        for (int i=0; i<byte_addr.length; i++) {
-            result.append(Integer.toHexString((byte_addr[5-i] & 0xFF)));
-            if (i<byte_addr.length-1) result.append(":");
+        String result = string;
+        if (result == null) {
+            char[] chars = new char[17];
+            int n = 0;
+            for (int i = 5; i >= 0; i--) {
+                int b = getByte(i);
+                if (b >= 0x10) chars[n++] = HEX[b >> 4];
+                chars[n++] = HEX[b & 0xF];
+                if (i > 0) chars[n++] = ':';
+            }
+            result = new String(chars, 0, n);
+            string = result;
         }
-        return result.toString();
+        return result;
     }
-    
+
 }
@@ -15,7 +15,17 @@
  */
 package org.thingml.bglib;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -27,6 +37,8 @@ public class BGAPI implements BGAPITransportListener {
     
     public BGAPI(BGAPITransport bgapi) {
         this.bgapi = bgapi;
+        initDispatchTable();
+        bgapi.setHeaderValidator(BGAPI::isValidHeader);
         bgapi.addListener(this);
     }
     
@@ -36,9 +48,10 @@ public class BGAPI implements BGAPITransportListener {
     
     public void disconnect() {
         bgapi.stop();
+        failPendingCommands(new CancellationException("BGAPI disconnected."));
     }
     
-    public ArrayList<BGAPIListener> listeners = new ArrayList<BGAPIListener>();
+    private final BGAPIListenerList<BGAPIListener> listeners = new BGAPIListenerList<BGAPIListener>(new BGAPIListener[0]);
      public void addListener(BGAPIListener l) {
         listeners.add(l);
     }
@@ -46,290 +59,511 @@ public class BGAPI implements BGAPITransportListener {
         listeners.remove(l);
     }
 
+    // Subscribers to attribute values, indexed by connection and attribute
+    // handle. The map is replaced (copy-on-write) when a key is added or
+    // removed, so the receiver thread reads it without locking.
+    private volatile LongHashMap<BGAPIListenerList<BGAPIAttributeListener>> attributeListeners = new LongHashMap<BGAPIListenerList<BGAPIAttributeListener>>();
+    private final Object attributeListenersLock = new Object();
+
+    private static long attributeKey(int connection, int atthandle) {
+        return ((long) (connection & 0xFF) << 16) | (atthandle & 0xFFFF);
+    }
+
+    /**
+     * Delivers the values of one attribute of one connection to l, without
+     * l having to filter every receive_attclient_attribute_value. Handles
+     * are reused by new connections, so subscriptions should be removed
+     * when the connection is closed.
+     */
+    public void subscribeAttribute(int connection, int atthandle, BGAPIAttributeListener l) {
+        long key = attributeKey(connection, atthandle);
+        synchronized (attributeListenersLock) {
+            BGAPIListenerList<BGAPIAttributeListener> subscribers = attributeListeners.get(key);
+            if (subscribers == null) {
+                subscribers = new BGAPIListenerList<BGAPIAttributeListener>(new BGAPIAttributeListener[0]);
+                subscribers.add(l);
+                LongHashMap<BGAPIListenerList<BGAPIAttributeListener>> map = attributeListeners.copy();
+                map.put(key, subscribers);
+                attributeListeners = map;
+            } else {
+                subscribers.add(l);
+            }
+        }
+    }
+
+    public void unsubscribeAttribute(int connection, int atthandle, BGAPIAttributeListener l) {
+        long key = attributeKey(connection, atthandle);
+        synchronized (attributeListenersLock) {
+            BGAPIListenerList<BGAPIAttributeListener> subscribers = attributeListeners.get(key);
+            if (subscribers == null) return;
+            subscribers.remove(l);
+            if (subscribers.isEmpty()) {
+                LongHashMap<BGAPIListenerList<BGAPIAttributeListener>> map = attributeListeners.copy();
+                map.remove(key);
+                attributeListeners = map;
+            }
+        }
+    }
+
     public void packetSent(BGAPIPacket packet) {}
 
     // General packet handler
     public void packetReceived(BGAPIPacket packet) {
-		if (packet.getMsgType() == 0) {
-			switch(packet.classID) {
-				case 0: receive_system_cmd(packet);break;
-				case 1: receive_flash_cmd(packet);break;
-				case 2: receive_attributes_cmd(packet);break;
-				case 3: receive_connection_cmd(packet);break;
-				case 4: receive_attclient_cmd(packet);break;
-				case 5: receive_sm_cmd(packet);break;
-				case 6: receive_gap_cmd(packet);break;
-				case 7: receive_hardware_cmd(packet);break;
-				case 8: receive_test_cmd(packet);break;
-				default: break;
+		boolean scanResponse = packet.msgType == 1 && packet.classID == 6 && packet.commandID == 0;
+		if (scanResponse) {
+			BGAPIScanFilter filter = scanFilter;
+			if (filter != null) {
+				packet.wrapPayload(reader);
+				if (!filter.accept(reader, System.nanoTime())) return;
 			}
 		}
-		else {
-			switch(packet.classID) {
-				case 0: receive_system_evt(packet);break;
-				case 1: receive_flash_evt(packet);break;
-				case 2: receive_attributes_evt(packet);break;
-				case 3: receive_connection_evt(packet);break;
-				case 4: receive_attclient_evt(packet);break;
-				case 5: receive_sm_evt(packet);break;
-				case 6: receive_gap_evt(packet);break;
-				case 7: receive_hardware_evt(packet);break;
-				case 8: receive_test_evt(packet);break;
-				default: break;
+		int idx = dispatchIndex(packet.msgType, packet.classID, packet.commandID);
+		if (idx >= 0 && handlers[idx] != null) {
+			BGAPIEventExecutor executor = eventExecutor;
+			if (executor == null) {
+				packet.wrapPayload(reader); // decodes the payload in place, without copying it
+				handlers[idx].handle(reader);
+			}
+			else {
+				// Only scan responses, which come again, can be shed when the listeners fall behind
+				executor.execute(eventLane(packet), new DeferredEvent(handlers[idx], packet.copy()), scanResponse);
 			}
 		}
+		if (packet.getMsgType() == 0) completeCommand(packet);
+		else if (packet.classID == 0 && packet.commandID == 0) { // system_boot: the dongle forgot every command
+			failPendingCommands(new IllegalStateException("BLED112 was reset."));
+		}
+    }
+
+    /**************************************************************************
+     * DISPATCH TABLE
+     *************************************************************************/
+
+    private volatile BGAPIEventExecutor eventExecutor = null;
+
+    /**
+     * Delivers the events to the listeners through executor instead of
+     * calling them from the receiver thread. null restores the direct
+     * delivery. Responses to sendCommand still complete on the receiver
+     * thread.
+     */
+    public void setEventExecutor(BGAPIEventExecutor executor) {
+        this.eventExecutor = executor;
+    }
+
+    public BGAPIEventExecutor getEventExecutor() {
+        return eventExecutor;
+    }
+
+    private volatile BGAPIScanFilter scanFilter = null;
+
+    /**
+     * Filters the scan responses on the receiver thread, before they are
+     * dispatched to the listeners. null forwards them all.
+     */
+    public void setScanFilter(BGAPIScanFilter filter) {
+        this.scanFilter = filter;
+    }
+
+    public BGAPIScanFilter getScanFilter() {
+        return scanFilter;
+    }
+
+    // Events of the connection and attclient classes start with the
+    // connection handle and are kept in order per connection.
+    private static int eventLane(BGAPIPacket packet) {
+        if ((packet.classID == 3 || packet.classID == 4) && packet.getPayloadLength() > 0) {
+            packet.wrapPayload(LANE_READER.get());
+            return LANE_READER.get().r_uint8() + 1;
+        }
+        return BGAPIEventExecutor.GLOBAL_LANE;
+    }
+
+    private static final ThreadLocal<BGAPIPacketReader> LANE_READER = new ThreadLocal<BGAPIPacketReader>() {
+        protected BGAPIPacketReader initialValue() {
+            return new BGAPIPacketReader(new byte[0]);
+        }
+    };
+
+    private static class DeferredEvent implements Runnable {
+        private final PacketHandler handler;
+        private final BGAPIPacket packet;
+
+        DeferredEvent(PacketHandler handler, BGAPIPacket packet) {
+            this.handler = handler;
+            this.packet = packet;
+        }
+
+        public void run() {
+            handler.handle(packet.getPayloadReader());
+        }
+    }
+
+    private interface PacketHandler {
+        void handle(BGAPIPacketReader r);
+    }
+
+    private static final int MAX_CLASS = 16;
+    private static final int MAX_COMMAND = 32;
+
+    // Handlers indexed by message type, class ID and command ID
+    private final PacketHandler[] handlers = new PacketHandler[2 * MAX_CLASS * MAX_COMMAND];
+
+    // Reused for every packet, packets are received from a single thread
+    private final BGAPIPacketReader reader = new BGAPIPacketReader(new byte[0]);
+
+    private static int dispatchIndex(int msgType, int classID, int commandID) {
+        if (classID < 0 || classID >= MAX_CLASS || commandID < 0 || commandID >= MAX_COMMAND) return -1;
+        return (msgType * MAX_CLASS + classID) * MAX_COMMAND + commandID;
+    }
+
+    private void register(int msgType, int classID, int commandID, PacketHandler h) {
+        handlers[dispatchIndex(msgType, classID, commandID)] = h;
+    }
+
+    // Minimum payload length of the responses and events of the dispatch
+    // table, by class and command ID (-1 where there is no message). A
+    // header of one of these messages announcing a shorter payload is
+    // corrupted. Longer payloads and unknown messages, such as the events
+    // added by newer firmware, are accepted and ignored.
+    private static final int[][] MIN_RESPONSE_LENGTHS = {
+        {0, 0, 6, 2, 3, 4, 1, 5, 12, 0, 2, 2, 0},  // system
+        {0, 0, 0, 2, 3, 0, 2, 0},                  // flash
+        {2, 7, 5, 0},                              // attributes
+        {3, 2, 3, 3, 2, 3, 3, 1, 1},               // connection
+        {3, 3, 3, 3, 3, 3, 3, 0, 3, 3, 3, 3},      // attclient
+        {3, 0, 2, 0, 2, 1, 0},                     // sm
+        {0, 2, 2, 3, 2, 3, 2, 2, 2, 2, 2},         // gap
+        {2, 2, 2, 2, 2, 2, 2, 4, 2, 4, 3, 1, 0},   // hardware
+        {0, 0, 2, 0, 1},                           // test
+    };
+    private static final int[][] MIN_EVENT_LENGTHS = {
+        {12, 1, 2},           // system
+        {3},                  // flash
+        {7, 5},               // attributes
+        {16, 6, 2, 2, 3},     // connection
+        {3, 5, 6, 7, 4, 5, 2}, // attclient
+        {3, 3, 5, 1, 4},      // sm
+        {11, 2},              // gap
+        {7, 1, 3},            // hardware
+    };
+
+    private static boolean isValidHeader(int msgType, int classID, int commandID, int payloadLength) {
+        int[][] lengths = (msgType == 0) ? MIN_RESPONSE_LENGTHS : MIN_EVENT_LENGTHS;
+        if (classID >= lengths.length || commandID >= lengths[classID].length) return true;
+        return payloadLength >= lengths[classID][commandID];
+    }
+
+    private void initDispatchTable() {
+		// Handlers for class system (index = 0)
+		register(0, 0, 0, this::receive_system_reset);
+		register(0, 0, 1, this::receive_system_hello);
+		register(0, 0, 2, this::receive_system_address_get);
+		register(0, 0, 3, this::receive_system_reg_write);
+		register(0, 0, 4, this::receive_system_reg_read);
+		register(0, 0, 5, this::receive_system_get_counters);
+		register(0, 0, 6, this::receive_system_get_connections);
+		register(0, 0, 7, this::receive_system_read_memory);
+		register(0, 0, 8, this::receive_system_get_info);
+		register(0, 0, 9, this::receive_system_endpoint_tx);
+		register(0, 0, 10, this::receive_system_whitelist_append);
+		register(0, 0, 11, this::receive_system_whitelist_remove);
+		register(0, 0, 12, this::receive_system_whitelist_clear);
+		register(1, 0, 0, this::receive_system_boot);
+		register(1, 0, 1, this::receive_system_debug);
+		register(1, 0, 2, this::receive_system_endpoint_rx);
+		// Handlers for class flash (index = 1)
+		register(0, 1, 0, this::receive_flash_ps_defrag);
+		register(0, 1, 1, this::receive_flash_ps_dump);
+		register(0, 1, 2, this::receive_flash_ps_erase_all);
+		register(0, 1, 3, this::receive_flash_ps_save);
+		register(0, 1, 4, this::receive_flash_ps_load);
+		register(0, 1, 5, this::receive_flash_ps_erase);
+		register(0, 1, 6, this::receive_flash_erase_page);
+		register(0, 1, 7, this::receive_flash_write_words);
+		register(1, 1, 0, this::receive_flash_ps_key);
+		// Handlers for class attributes (index = 2)
+		register(0, 2, 0, this::receive_attributes_write);
+		register(0, 2, 1, this::receive_attributes_read);
+		register(0, 2, 2, this::receive_attributes_read_type);
+		register(0, 2, 3, this::receive_attributes_user_response);
+		register(1, 2, 0, this::receive_attributes_value);
+		register(1, 2, 1, this::receive_attributes_user_request);
+		// Handlers for class connection (index = 3)
+		register(0, 3, 0, this::receive_connection_disconnect);
+		register(0, 3, 1, this::receive_connection_get_rssi);
+		register(0, 3, 2, this::receive_connection_update);
+		register(0, 3, 3, this::receive_connection_version_update);
+		register(0, 3, 4, this::receive_connection_channel_map_get);
+		register(0, 3, 5, this::receive_connection_channel_map_set);
+		register(0, 3, 6, this::receive_connection_features_get);
+		register(0, 3, 7, this::receive_connection_get_status);
+		register(0, 3, 8, this::receive_connection_raw_tx);
+		register(1, 3, 0, this::receive_connection_status);
+		register(1, 3, 1, this::receive_connection_version_ind);
+		register(1, 3, 2, this::receive_connection_feature_ind);
+		register(1, 3, 3, this::receive_connection_raw_rx);
+		register(1, 3, 4, this::receive_connection_disconnected);
+		// Handlers for class attclient (index = 4)
+		register(0, 4, 0, this::receive_attclient_find_by_type_value);
+		register(0, 4, 1, this::receive_attclient_read_by_group_type);
+		register(0, 4, 2, this::receive_attclient_read_by_type);
+		register(0, 4, 3, this::receive_attclient_find_information);
+		register(0, 4, 4, this::receive_attclient_read_by_handle);
+		register(0, 4, 5, this::receive_attclient_attribute_write);
+		register(0, 4, 6, this::receive_attclient_write_command);
+		register(0, 4, 7, this::receive_attclient_reserved);
+		register(0, 4, 8, this::receive_attclient_read_long);
+		register(0, 4, 9, this::receive_attclient_prepare_write);
+		register(0, 4, 10, this::receive_attclient_execute_write);
+		register(0, 4, 11, this::receive_attclient_read_multiple);
+		register(1, 4, 0, this::receive_attclient_indicated);
+		register(1, 4, 1, this::receive_attclient_procedure_completed);
+		register(1, 4, 2, this::receive_attclient_group_found);
+		register(1, 4, 3, this::receive_attclient_attribute_found);
+		register(1, 4, 4, this::receive_attclient_find_information_found);
+		register(1, 4, 5, this::receive_attclient_attribute_value);
+		register(1, 4, 6, this::receive_attclient_read_multiple_response);
+		// Handlers for class sm (index = 5)
+		register(0, 5, 0, this::receive_sm_encrypt_start);
+		register(0, 5, 1, this::receive_sm_set_bondable_mode);
+		register(0, 5, 2, this::receive_sm_delete_bonding);
+		register(0, 5, 3, this::receive_sm_set_parameters);
+		register(0, 5, 4, this::receive_sm_passkey_entry);
+		register(0, 5, 5, this::receive_sm_get_bonds);
+		register(0, 5, 6, this::receive_sm_set_oob_data);
+		register(1, 5, 0, this::receive_sm_smp_data);
+		register(1, 5, 1, this::receive_sm_bonding_fail);
+		register(1, 5, 2, this::receive_sm_passkey_display);
+		register(1, 5, 3, this::receive_sm_passkey_request);
+		register(1, 5, 4, this::receive_sm_bond_status);
+		// Handlers for class gap (index = 6)
+		register(0, 6, 0, this::receive_gap_set_privacy_flags);
+		register(0, 6, 1, this::receive_gap_set_mode);
+		register(0, 6, 2, this::receive_gap_discover);
+		register(0, 6, 3, this::receive_gap_connect_direct);
+		register(0, 6, 4, this::receive_gap_end_procedure);
+		register(0, 6, 5, this::receive_gap_connect_selective);
+		register(0, 6, 6, this::receive_gap_set_filtering);
+		register(0, 6, 7, this::receive_gap_set_scan_parameters);
+		register(0, 6, 8, this::receive_gap_set_adv_parameters);
+		register(0, 6, 9, this::receive_gap_set_adv_data);
+		register(0, 6, 10, this::receive_gap_set_directed_connectable_mode);
+		register(1, 6, 0, this::receive_gap_scan_response);
+		register(1, 6, 1, this::receive_gap_mode_changed);
+		// Handlers for class hardware (index = 7)
+		register(0, 7, 0, this::receive_hardware_io_port_config_irq);
+		register(0, 7, 1, this::receive_hardware_set_soft_timer);
+		register(0, 7, 2, this::receive_hardware_adc_read);
+		register(0, 7, 3, this::receive_hardware_io_port_config_direction);
+		register(0, 7, 4, this::receive_hardware_io_port_config_function);
+		register(0, 7, 5, this::receive_hardware_io_port_config_pull);
+		register(0, 7, 6, this::receive_hardware_io_port_write);
+		register(0, 7, 7, this::receive_hardware_io_port_read);
+		register(0, 7, 8, this::receive_hardware_spi_config);
+		register(0, 7, 9, this::receive_hardware_spi_transfer);
+		register(0, 7, 10, this::receive_hardware_i2c_read);
+		register(0, 7, 11, this::receive_hardware_i2c_write);
+		register(0, 7, 12, this::receive_hardware_set_txpower);
+		register(1, 7, 0, this::receive_hardware_io_port_status);
+		register(1, 7, 1, this::receive_hardware_soft_timer);
+		register(1, 7, 2, this::receive_hardware_adc_result);
+		// Handlers for class test (index = 8)
+		register(0, 8, 0, this::receive_test_phy_tx);
+		register(0, 8, 1, this::receive_test_phy_rx);
+		register(0, 8, 2, this::receive_test_phy_end);
+		register(0, 8, 3, this::receive_test_phy_reset);
+		register(0, 8, 4, this::receive_test_get_channel_map);
+    }
+
+    /**************************************************************************
+     * COMMAND / RESPONSE CORRELATION
+     *************************************************************************/
+
+    // The BLED112 answers the commands one at a time, in the order they were
+    // sent, so the responses are matched against a single FIFO of the
+    // commands sent. Every command sent is recorded (without a future for
+    // fire-and-forget commands) so that a response is never given to the
+    // wrong future. A response skips the older commands whose response was
+    // lost, e.g. to a resynchronization of the framing; their futures fail.
+    private static final int MAX_UNANSWERED = 256;
+
+    private static class PendingCommand {
+        final int classID;
+        final int commandID;
+        final CompletableFuture<BGAPIPacket> future; // null for fire-and-forget commands
+
+        PendingCommand(BGAPIPacket p, CompletableFuture<BGAPIPacket> future) {
+            this.classID = p.classID;
+            this.commandID = p.commandID;
+            this.future = future;
+        }
 
+        boolean matches(BGAPIPacket response) {
+            return response.classID == classID && response.commandID == commandID;
+        }
+    }
+
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<PendingCommand>();
+    // Keeps the recorded order identical to the sending order. The receiver
+    // thread only needs the pending lock, so it never waits for a write.
+    private final Object sendLock = new Object();
+
+    private static ScheduledExecutorService timeouts = null;
+
+    static synchronized ScheduledExecutorService getTimeoutScheduler() {
+        if (timeouts == null) {
+            timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BGAPI command timeouts");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timeouts;
+    }
+
+    private void send(BGAPIPacket p) {
+        send(p, null);
+    }
+
+    private void send(BGAPIPacket p, CompletableFuture<BGAPIPacket> future) {
+        PendingCommand command = new PendingCommand(p, future);
+        synchronized (sendLock) {
+            PendingCommand evicted = null;
+            synchronized (pending) {
+                if (pending.size() >= MAX_UNANSWERED) evicted = pending.poll(); // the dongle is not answering
+                pending.add(command);
+            }
+            if (evicted != null && evicted.future != null) {
+                evicted.future.completeExceptionally(new IllegalStateException("No response to BGAPI command."));
+            }
+            boolean sent;
+            try {
+                sent = bgapi.sendPacket(p);
+            } catch (RuntimeException e) {
+                synchronized (pending) {
+                    pending.removeLastOccurrence(command);
+                }
+                throw e;
+            }
+            if (!sent) { // never sent, so there will be no response
+                synchronized (pending) {
+                    pending.removeLastOccurrence(command);
+                }
+                if (future != null) future.completeExceptionally(new IllegalStateException("BGAPI command not sent."));
+            }
+        }
+    }
+
+    /**
+     * Sends a command and returns a future which is completed with the
+     * response packet, or completed exceptionally with a TimeoutException if
+     * no response arrived after timeout ms (0 for no timeout).
+     * 
+     * The future is completed from the receiver thread, so long running
+     * continuations should use the *Async variants of CompletableFuture.
+     */
+    public CompletableFuture<BGAPIPacket> sendCommand(BGAPIPacket p, long timeout) {
+        final CompletableFuture<BGAPIPacket> future = new CompletableFuture<BGAPIPacket>();
+        int idx = dispatchIndex(0, p.classID, p.commandID);
+        if (p.msgType != 0 || idx < 0 || handlers[idx] == null) {
+            future.completeExceptionally(new IllegalArgumentException("Unknown BGAPI command."));
+            return future;
+        }
+        send(p, future);
+        if (timeout > 0 && !future.isDone()) {
+            final ScheduledFuture<?> timer = getTimeoutScheduler().schedule(new Runnable() {
+                public void run() {
+                    future.completeExceptionally(new TimeoutException("No response to BGAPI command."));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<BGAPIPacket, Throwable>() {
+                public void accept(BGAPIPacket packet, Throwable error) {
+                    timer.cancel(false);
+                }
+            });
+        }
+        return future;
+    }
+
+    private void completeCommand(BGAPIPacket packet) {
+        ArrayList<PendingCommand> skipped = null;
+        PendingCommand command = null;
+        synchronized (pending) {
+            for (PendingCommand c : pending) {
+                if (c.matches(packet)) {
+                    command = c;
+                    break;
+                }
+            }
+            if (command == null) return; // not sent through this BGAPI
+            for (PendingCommand c = pending.poll(); c != command; c = pending.poll()) {
+                if (skipped == null) skipped = new ArrayList<PendingCommand>();
+                skipped.add(c);
+            }
+        }
+        if (skipped != null) {
+            for (PendingCommand c : skipped) {
+                if (c.future != null) c.future.completeExceptionally(new IllegalStateException("BGAPI response lost."));
+            }
+        }
+        // A timed out future is still consumed here, so the next one stays in line.
+        if (command.future != null) command.future.complete(packet.copy());
+    }
+
+    private void failPendingCommands(Throwable reason) {
+        ArrayList<PendingCommand> failed;
+        synchronized (pending) {
+            failed = new ArrayList<PendingCommand>(pending);
+            pending.clear();
+        }
+        for (PendingCommand c : failed) {
+            if (c.future != null) c.future.completeExceptionally(reason);
+        }
     }
     
-	private void receive_system_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_system_reset(packet); break;
-			case 1: receive_system_hello(packet); break;
-			case 2: receive_system_address_get(packet); break;
-			case 3: receive_system_reg_write(packet); break;
-			case 4: receive_system_reg_read(packet); break;
-			case 5: receive_system_get_counters(packet); break;
-			case 6: receive_system_get_connections(packet); break;
-			case 7: receive_system_read_memory(packet); break;
-			case 8: receive_system_get_info(packet); break;
-			case 9: receive_system_endpoint_tx(packet); break;
-			case 10: receive_system_whitelist_append(packet); break;
-			case 11: receive_system_whitelist_remove(packet); break;
-			case 12: receive_system_whitelist_clear(packet); break;
-			default: break;
-		}
-	}
-	private void receive_system_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_system_boot(packet); break;
-			case 1: receive_system_debug(packet); break;
-			case 2: receive_system_endpoint_rx(packet); break;
-			default: break;
-		}
-	}
-	private void receive_flash_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_flash_ps_defrag(packet); break;
-			case 1: receive_flash_ps_dump(packet); break;
-			case 2: receive_flash_ps_erase_all(packet); break;
-			case 3: receive_flash_ps_save(packet); break;
-			case 4: receive_flash_ps_load(packet); break;
-			case 5: receive_flash_ps_erase(packet); break;
-			case 6: receive_flash_erase_page(packet); break;
-			case 7: receive_flash_write_words(packet); break;
-			default: break;
-		}
-	}
-	private void receive_flash_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_flash_ps_key(packet); break;
-			default: break;
-		}
-	}
-	private void receive_attributes_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_attributes_write(packet); break;
-			case 1: receive_attributes_read(packet); break;
-			case 2: receive_attributes_read_type(packet); break;
-			case 3: receive_attributes_user_response(packet); break;
-			default: break;
-		}
-	}
-	private void receive_attributes_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_attributes_value(packet); break;
-			case 1: receive_attributes_user_request(packet); break;
-			default: break;
-		}
-	}
-	private void receive_connection_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_connection_disconnect(packet); break;
-			case 1: receive_connection_get_rssi(packet); break;
-			case 2: receive_connection_update(packet); break;
-			case 3: receive_connection_version_update(packet); break;
-			case 4: receive_connection_channel_map_get(packet); break;
-			case 5: receive_connection_channel_map_set(packet); break;
-			case 6: receive_connection_features_get(packet); break;
-			case 7: receive_connection_get_status(packet); break;
-			case 8: receive_connection_raw_tx(packet); break;
-			default: break;
-		}
-	}
-	private void receive_connection_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_connection_status(packet); break;
-			case 1: receive_connection_version_ind(packet); break;
-			case 2: receive_connection_feature_ind(packet); break;
-			case 3: receive_connection_raw_rx(packet); break;
-			case 4: receive_connection_disconnected(packet); break;
-			default: break;
-		}
-	}
-	private void receive_attclient_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_attclient_find_by_type_value(packet); break;
-			case 1: receive_attclient_read_by_group_type(packet); break;
-			case 2: receive_attclient_read_by_type(packet); break;
-			case 3: receive_attclient_find_information(packet); break;
-			case 4: receive_attclient_read_by_handle(packet); break;
-			case 5: receive_attclient_attribute_write(packet); break;
-			case 6: receive_attclient_write_command(packet); break;
-			case 7: receive_attclient_reserved(packet); break;
-			case 8: receive_attclient_read_long(packet); break;
-			case 9: receive_attclient_prepare_write(packet); break;
-			case 10: receive_attclient_execute_write(packet); break;
-			case 11: receive_attclient_read_multiple(packet); break;
-			default: break;
-		}
-	}
-	private void receive_attclient_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_attclient_indicated(packet); break;
-			case 1: receive_attclient_procedure_completed(packet); break;
-			case 2: receive_attclient_group_found(packet); break;
-			case 3: receive_attclient_attribute_found(packet); break;
-			case 4: receive_attclient_find_information_found(packet); break;
-			case 5: receive_attclient_attribute_value(packet); break;
-			case 6: receive_attclient_read_multiple_response(packet); break;
-			default: break;
-		}
-	}
-	private void receive_sm_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_sm_encrypt_start(packet); break;
-			case 1: receive_sm_set_bondable_mode(packet); break;
-			case 2: receive_sm_delete_bonding(packet); break;
-			case 3: receive_sm_set_parameters(packet); break;
-			case 4: receive_sm_passkey_entry(packet); break;
-			case 5: receive_sm_get_bonds(packet); break;
-			case 6: receive_sm_set_oob_data(packet); break;
-			default: break;
-		}
-	}
-	private void receive_sm_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_sm_smp_data(packet); break;
-			case 1: receive_sm_bonding_fail(packet); break;
-			case 2: receive_sm_passkey_display(packet); break;
-			case 3: receive_sm_passkey_request(packet); break;
-			case 4: receive_sm_bond_status(packet); break;
-			default: break;
-		}
-	}
-	private void receive_gap_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_gap_set_privacy_flags(packet); break;
-			case 1: receive_gap_set_mode(packet); break;
-			case 2: receive_gap_discover(packet); break;
-			case 3: receive_gap_connect_direct(packet); break;
-			case 4: receive_gap_end_procedure(packet); break;
-			case 5: receive_gap_connect_selective(packet); break;
-			case 6: receive_gap_set_filtering(packet); break;
-			case 7: receive_gap_set_scan_parameters(packet); break;
-			case 8: receive_gap_set_adv_parameters(packet); break;
-			case 9: receive_gap_set_adv_data(packet); break;
-			case 10: receive_gap_set_directed_connectable_mode(packet); break;
-			default: break;
-		}
-	}
-	private void receive_gap_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_gap_scan_response(packet); break;
-			case 1: receive_gap_mode_changed(packet); break;
-			default: break;
-		}
-	}
-	private void receive_hardware_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_hardware_io_port_config_irq(packet); break;
-			case 1: receive_hardware_set_soft_timer(packet); break;
-			case 2: receive_hardware_adc_read(packet); break;
-			case 3: receive_hardware_io_port_config_direction(packet); break;
-			case 4: receive_hardware_io_port_config_function(packet); break;
-			case 5: receive_hardware_io_port_config_pull(packet); break;
-			case 6: receive_hardware_io_port_write(packet); break;
-			case 7: receive_hardware_io_port_read(packet); break;
-			case 8: receive_hardware_spi_config(packet); break;
-			case 9: receive_hardware_spi_transfer(packet); break;
-			case 10: receive_hardware_i2c_read(packet); break;
-			case 11: receive_hardware_i2c_write(packet); break;
-			case 12: receive_hardware_set_txpower(packet); break;
-			default: break;
-		}
-	}
-	private void receive_hardware_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_hardware_io_port_status(packet); break;
-			case 1: receive_hardware_soft_timer(packet); break;
-			case 2: receive_hardware_adc_result(packet); break;
-			default: break;
-		}
-	}
-	private void receive_test_cmd(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			case 0: receive_test_phy_tx(packet); break;
-			case 1: receive_test_phy_rx(packet); break;
-			case 2: receive_test_phy_end(packet); break;
-			case 3: receive_test_phy_reset(packet); break;
-			case 4: receive_test_get_channel_map(packet); break;
-			default: break;
-		}
-	}
-	private void receive_test_evt(BGAPIPacket packet) {
-		switch(packet.commandID) {
-			default: break;
-		}
-	}
 
 
 
 	// Callbacks for class system (index = 0)
-	private void receive_system_reset(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_system_reset();
+	private void receive_system_reset(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_reset();
 	}
-	private void receive_system_hello(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_system_hello();
+	private void receive_system_hello(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_hello();
 	}
-	private void receive_system_address_get(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_address_get(BGAPIPacketReader r) {
 		BDAddr address = r.r_bd_addr();
-		for(BGAPIListener l : listeners) l.receive_system_address_get(address);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_address_get(address);
 	}
-	private void receive_system_reg_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_reg_write(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_system_reg_write(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_reg_write(result);
 	}
-	private void receive_system_reg_read(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_reg_read(BGAPIPacketReader r) {
 		int address = r.r_uint16();
 		int value = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_system_reg_read(address, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_reg_read(address, value);
 	}
-	private void receive_system_get_counters(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_get_counters(BGAPIPacketReader r) {
 		int txok = r.r_uint8();
 		int txretry = r.r_uint8();
 		int rxok = r.r_uint8();
 		int rxfail = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_system_get_counters(txok, txretry, rxok, rxfail);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_get_counters(txok, txretry, rxok, rxfail);
 	}
-	private void receive_system_get_connections(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_get_connections(BGAPIPacketReader r) {
 		int maxconn = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_system_get_connections(maxconn);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_get_connections(maxconn);
 	}
-	private void receive_system_read_memory(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_read_memory(BGAPIPacketReader r) {
 		int address = r.r_uint32();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_system_read_memory(address, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_read_memory(address, data);
 	}
-	private void receive_system_get_info(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_get_info(BGAPIPacketReader r) {
 		int major = r.r_uint16();
 		int minor = r.r_uint16();
 		int patch = r.r_uint16();
@@ -337,28 +571,23 @@ public class BGAPI implements BGAPITransportListener {
 		int ll_version = r.r_uint16();
 		int protocol_version = r.r_uint8();
 		int hw = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_system_get_info(major, minor, patch, build, ll_version, protocol_version, hw);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_get_info(major, minor, patch, build, ll_version, protocol_version, hw);
 	}
-	private void receive_system_endpoint_tx(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_system_endpoint_tx();
+	private void receive_system_endpoint_tx(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_endpoint_tx();
 	}
-	private void receive_system_whitelist_append(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_whitelist_append(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_system_whitelist_append(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_whitelist_append(result);
 	}
-	private void receive_system_whitelist_remove(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_system_whitelist_remove(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_system_whitelist_remove(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_whitelist_remove(result);
 	}
-	private void receive_system_whitelist_clear(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_system_whitelist_clear();
+	private void receive_system_whitelist_clear(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_whitelist_clear();
 	}
-	private void receive_system_boot(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_system_boot(BGAPIPacketReader r) {
 		int major = r.r_uint16();
 		int minor = r.r_uint16();
 		int patch = r.r_uint16();
@@ -366,161 +595,134 @@ public class BGAPI implements BGAPITransportListener {
 		int ll_version = r.r_uint16();
 		int protocol_version = r.r_uint8();
 		int hw = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_system_boot(major, minor, patch, build, ll_version, protocol_version, hw);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_boot(major, minor, patch, build, ll_version, protocol_version, hw);
 	}
-	private void receive_system_debug(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_system_debug(BGAPIPacketReader r) {
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_system_debug(data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_debug(data);
 	}
-	private void receive_system_endpoint_rx(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_system_endpoint_rx(BGAPIPacketReader r) {
 		int endpoint = r.r_uint8();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_system_endpoint_rx(endpoint, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_system_endpoint_rx(endpoint, data);
 	}
 
 	// Callbacks for class flash (index = 1)
-	private void receive_flash_ps_defrag(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_defrag();
+	private void receive_flash_ps_defrag(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_defrag();
 	}
-	private void receive_flash_ps_dump(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_dump();
+	private void receive_flash_ps_dump(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_dump();
 	}
-	private void receive_flash_ps_erase_all(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_erase_all();
+	private void receive_flash_ps_erase_all(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_erase_all();
 	}
-	private void receive_flash_ps_save(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_flash_ps_save(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_save(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_save(result);
 	}
-	private void receive_flash_ps_load(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_flash_ps_load(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_load(result, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_load(result, value);
 	}
-	private void receive_flash_ps_erase(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_erase();
+	private void receive_flash_ps_erase(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_erase();
 	}
-	private void receive_flash_erase_page(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_flash_erase_page(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_flash_erase_page(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_erase_page(result);
 	}
-	private void receive_flash_write_words(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_flash_write_words();
+	private void receive_flash_write_words(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_write_words();
 	}
-	private void receive_flash_ps_key(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_flash_ps_key(BGAPIPacketReader r) {
 		int key = r.r_uint16();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_flash_ps_key(key, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_flash_ps_key(key, value);
 	}
 
 	// Callbacks for class attributes (index = 2)
-	private void receive_attributes_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attributes_write(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attributes_write(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_write(result);
 	}
-	private void receive_attributes_read(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attributes_read(BGAPIPacketReader r) {
 		int handle = r.r_uint16();
 		int offset = r.r_uint16();
 		int result = r.r_uint16();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attributes_read(handle, offset, result, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_read(handle, offset, result, value);
 	}
-	private void receive_attributes_read_type(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attributes_read_type(BGAPIPacketReader r) {
 		int handle = r.r_uint16();
 		int result = r.r_uint16();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attributes_read_type(handle, result, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_read_type(handle, result, value);
 	}
-	private void receive_attributes_user_response(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_attributes_user_response();
+	private void receive_attributes_user_response(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_user_response();
 	}
-	private void receive_attributes_value(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attributes_value(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int reason = r.r_uint8();
 		int handle = r.r_uint16();
 		int offset = r.r_uint16();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attributes_value(connection, reason, handle, offset, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_value(connection, reason, handle, offset, value);
 	}
-	private void receive_attributes_user_request(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attributes_user_request(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int handle = r.r_uint16();
 		int offset = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attributes_user_request(connection, handle, offset);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attributes_user_request(connection, handle, offset);
 	}
 
 	// Callbacks for class connection (index = 3)
-	private void receive_connection_disconnect(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_disconnect(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_disconnect(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_disconnect(connection, result);
 	}
-	private void receive_connection_get_rssi(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_get_rssi(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int rssi = r.r_int8();
-		for(BGAPIListener l : listeners) l.receive_connection_get_rssi(connection, rssi);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_get_rssi(connection, rssi);
 	}
-	private void receive_connection_update(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_update(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_update(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_update(connection, result);
 	}
-	private void receive_connection_version_update(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_version_update(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_version_update(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_version_update(connection, result);
 	}
-	private void receive_connection_channel_map_get(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_channel_map_get(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		byte[] map = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_connection_channel_map_get(connection, map);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_channel_map_get(connection, map);
 	}
-	private void receive_connection_channel_map_set(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_channel_map_set(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_channel_map_set(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_channel_map_set(connection, result);
 	}
-	private void receive_connection_features_get(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_features_get(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_features_get(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_features_get(connection, result);
 	}
-	private void receive_connection_get_status(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_get_status(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_connection_get_status(connection);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_get_status(connection);
 	}
-	private void receive_connection_raw_tx(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_connection_raw_tx(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_connection_raw_tx(connection);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_raw_tx(connection);
 	}
-	private void receive_connection_status(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_connection_status(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int flags = r.r_uint8();
 		BDAddr address = r.r_bd_addr();
@@ -529,411 +731,346 @@ public class BGAPI implements BGAPITransportListener {
 		int timeout = r.r_uint16();
 		int latency = r.r_uint16();
 		int bonding = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_connection_status(connection, flags, address, address_type, conn_interval, timeout, latency, bonding);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_status(connection, flags, address, address_type, conn_interval, timeout, latency, bonding);
 	}
-	private void receive_connection_version_ind(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_connection_version_ind(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int vers_nr = r.r_uint8();
 		int comp_id = r.r_uint16();
 		int sub_vers_nr = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_version_ind(connection, vers_nr, comp_id, sub_vers_nr);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_version_ind(connection, vers_nr, comp_id, sub_vers_nr);
 	}
-	private void receive_connection_feature_ind(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_connection_feature_ind(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		byte[] features = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_connection_feature_ind(connection, features);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_feature_ind(connection, features);
 	}
-	private void receive_connection_raw_rx(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_connection_raw_rx(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_connection_raw_rx(connection, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_raw_rx(connection, data);
 	}
-	private void receive_connection_disconnected(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_connection_disconnected(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int reason = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_connection_disconnected(connection, reason);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_connection_disconnected(connection, reason);
 	}
 
 	// Callbacks for class attclient (index = 4)
-	private void receive_attclient_find_by_type_value(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_find_by_type_value(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_find_by_type_value(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_find_by_type_value(connection, result);
 	}
-	private void receive_attclient_read_by_group_type(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_read_by_group_type(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_by_group_type(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_by_group_type(connection, result);
 	}
-	private void receive_attclient_read_by_type(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_read_by_type(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_by_type(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_by_type(connection, result);
 	}
-	private void receive_attclient_find_information(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_find_information(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_find_information(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_find_information(connection, result);
 	}
-	private void receive_attclient_read_by_handle(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_read_by_handle(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_by_handle(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_by_handle(connection, result);
 	}
-	private void receive_attclient_attribute_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_attribute_write(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_attribute_write(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_attribute_write(connection, result);
 	}
-	private void receive_attclient_write_command(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_write_command(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_write_command(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_write_command(connection, result);
 	}
-	private void receive_attclient_reserved(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_attclient_reserved();
+	private void receive_attclient_reserved(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_reserved();
 	}
-	private void receive_attclient_read_long(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_read_long(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_long(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_long(connection, result);
 	}
-	private void receive_attclient_prepare_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_prepare_write(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_prepare_write(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_prepare_write(connection, result);
 	}
-	private void receive_attclient_execute_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_execute_write(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_execute_write(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_execute_write(connection, result);
 	}
-	private void receive_attclient_read_multiple(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_attclient_read_multiple(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_multiple(connection, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_multiple(connection, result);
 	}
-	private void receive_attclient_indicated(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_indicated(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int attrhandle = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_indicated(connection, attrhandle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_indicated(connection, attrhandle);
 	}
-	private void receive_attclient_procedure_completed(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_procedure_completed(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int result = r.r_uint16();
 		int chrhandle = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_attclient_procedure_completed(connection, result, chrhandle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_procedure_completed(connection, result, chrhandle);
 	}
-	private void receive_attclient_group_found(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_group_found(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int start = r.r_uint16();
 		int end = r.r_uint16();
 		byte[] uuid = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attclient_group_found(connection, start, end, uuid);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_group_found(connection, start, end, uuid);
 	}
-	private void receive_attclient_attribute_found(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_attribute_found(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int chrdecl = r.r_uint16();
 		int value = r.r_uint16();
 		int properties = r.r_uint8();
 		byte[] uuid = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attclient_attribute_found(connection, chrdecl, value, properties, uuid);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_attribute_found(connection, chrdecl, value, properties, uuid);
 	}
-	private void receive_attclient_find_information_found(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_find_information_found(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int chrhandle = r.r_uint16();
 		byte[] uuid = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attclient_find_information_found(connection, chrhandle, uuid);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_find_information_found(connection, chrhandle, uuid);
 	}
-	private void receive_attclient_attribute_value(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_attribute_value(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		int atthandle = r.r_uint16();
 		int type = r.r_uint8();
 		byte[] value = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attclient_attribute_value(connection, atthandle, type, value);
+		BGAPIListenerList<BGAPIAttributeListener> subscribers = attributeListeners.get(attributeKey(connection, atthandle));
+		if (subscribers != null) {
+			for(BGAPIAttributeListener l : subscribers.snapshot()) l.receive_attclient_attribute_value(connection, atthandle, type, value);
+		}
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_attribute_value(connection, atthandle, type, value);
 	}
-	private void receive_attclient_read_multiple_response(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_attclient_read_multiple_response(BGAPIPacketReader r) {
 		int connection = r.r_uint8();
 		byte[] handles = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_attclient_read_multiple_response(connection, handles);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_attclient_read_multiple_response(connection, handles);
 	}
 
 	// Callbacks for class sm (index = 5)
-	private void receive_sm_encrypt_start(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_sm_encrypt_start(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_sm_encrypt_start(handle, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_encrypt_start(handle, result);
 	}
-	private void receive_sm_set_bondable_mode(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_sm_set_bondable_mode();
+	private void receive_sm_set_bondable_mode(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_set_bondable_mode();
 	}
-	private void receive_sm_delete_bonding(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_sm_delete_bonding(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_sm_delete_bonding(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_delete_bonding(result);
 	}
-	private void receive_sm_set_parameters(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_sm_set_parameters();
+	private void receive_sm_set_parameters(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_set_parameters();
 	}
-	private void receive_sm_passkey_entry(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_sm_passkey_entry(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_sm_passkey_entry(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_passkey_entry(result);
 	}
-	private void receive_sm_get_bonds(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_sm_get_bonds(BGAPIPacketReader r) {
 		int bonds = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_sm_get_bonds(bonds);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_get_bonds(bonds);
 	}
-	private void receive_sm_set_oob_data(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_sm_set_oob_data();
+	private void receive_sm_set_oob_data(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_set_oob_data();
 	}
-	private void receive_sm_smp_data(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_sm_smp_data(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
 		int packet = r.r_uint8();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_sm_smp_data(handle, packet, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_smp_data(handle, packet, data);
 	}
-	private void receive_sm_bonding_fail(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_sm_bonding_fail(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_sm_bonding_fail(handle, result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_bonding_fail(handle, result);
 	}
-	private void receive_sm_passkey_display(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_sm_passkey_display(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
 		int passkey = r.r_uint32();
-		for(BGAPIListener l : listeners) l.receive_sm_passkey_display(handle, passkey);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_passkey_display(handle, passkey);
 	}
-	private void receive_sm_passkey_request(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_sm_passkey_request(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_sm_passkey_request(handle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_passkey_request(handle);
 	}
-	private void receive_sm_bond_status(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_sm_bond_status(BGAPIPacketReader r) {
 		int bond = r.r_uint8();
 		int keysize = r.r_uint8();
 		int mitm = r.r_uint8();
 		int keys = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_sm_bond_status(bond, keysize, mitm, keys);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_sm_bond_status(bond, keysize, mitm, keys);
 	}
 
 	// Callbacks for class gap (index = 6)
-	private void receive_gap_set_privacy_flags(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_gap_set_privacy_flags();
+	private void receive_gap_set_privacy_flags(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_privacy_flags();
 	}
-	private void receive_gap_set_mode(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_mode(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_mode(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_mode(result);
 	}
-	private void receive_gap_discover(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_discover(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_discover(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_discover(result);
 	}
-	private void receive_gap_connect_direct(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_connect_direct(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		int connection_handle = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_gap_connect_direct(result, connection_handle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_connect_direct(result, connection_handle);
 	}
-	private void receive_gap_end_procedure(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_end_procedure(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_end_procedure(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_end_procedure(result);
 	}
-	private void receive_gap_connect_selective(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_connect_selective(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		int connection_handle = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_gap_connect_selective(result, connection_handle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_connect_selective(result, connection_handle);
 	}
-	private void receive_gap_set_filtering(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_filtering(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_filtering(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_filtering(result);
 	}
-	private void receive_gap_set_scan_parameters(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_scan_parameters(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_scan_parameters(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_scan_parameters(result);
 	}
-	private void receive_gap_set_adv_parameters(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_adv_parameters(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_adv_parameters(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_adv_parameters(result);
 	}
-	private void receive_gap_set_adv_data(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_adv_data(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_adv_data(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_adv_data(result);
 	}
-	private void receive_gap_set_directed_connectable_mode(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_gap_set_directed_connectable_mode(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_gap_set_directed_connectable_mode(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_set_directed_connectable_mode(result);
 	}
-	private void receive_gap_scan_response(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_gap_scan_response(BGAPIPacketReader r) {
 		int rssi = r.r_int8();
 		int packet_type = r.r_uint8();
 		BDAddr sender = r.r_bd_addr();
 		int address_type = r.r_uint8();
 		int bond = r.r_uint8();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_gap_scan_response(rssi, packet_type, sender, address_type, bond, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_scan_response(rssi, packet_type, sender, address_type, bond, data);
 	}
-	private void receive_gap_mode_changed(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_gap_mode_changed(BGAPIPacketReader r) {
 		int discover = r.r_uint8();
 		int connect = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_gap_mode_changed(discover, connect);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_gap_mode_changed(discover, connect);
 	}
 
 	// Callbacks for class hardware (index = 7)
-	private void receive_hardware_io_port_config_irq(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_config_irq(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_config_irq(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_config_irq(result);
 	}
-	private void receive_hardware_set_soft_timer(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_set_soft_timer(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_set_soft_timer(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_set_soft_timer(result);
 	}
-	private void receive_hardware_adc_read(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_adc_read(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_adc_read(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_adc_read(result);
 	}
-	private void receive_hardware_io_port_config_direction(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_config_direction(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_config_direction(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_config_direction(result);
 	}
-	private void receive_hardware_io_port_config_function(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_config_function(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_config_function(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_config_function(result);
 	}
-	private void receive_hardware_io_port_config_pull(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_config_pull(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_config_pull(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_config_pull(result);
 	}
-	private void receive_hardware_io_port_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_write(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_write(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_write(result);
 	}
-	private void receive_hardware_io_port_read(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_io_port_read(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		int port = r.r_uint8();
 		int data = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_read(result, port, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_read(result, port, data);
 	}
-	private void receive_hardware_spi_config(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_spi_config(BGAPIPacketReader r) {
 		int result = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_hardware_spi_config(result);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_spi_config(result);
 	}
-	private void receive_hardware_spi_transfer(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_spi_transfer(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		int channel = r.r_uint8();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_hardware_spi_transfer(result, channel, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_spi_transfer(result, channel, data);
 	}
-	private void receive_hardware_i2c_read(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_i2c_read(BGAPIPacketReader r) {
 		int result = r.r_uint16();
 		byte[] data = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_hardware_i2c_read(result, data);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_i2c_read(result, data);
 	}
-	private void receive_hardware_i2c_write(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_hardware_i2c_write(BGAPIPacketReader r) {
 		int written = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_hardware_i2c_write(written);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_i2c_write(written);
 	}
-	private void receive_hardware_set_txpower(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_hardware_set_txpower();
+	private void receive_hardware_set_txpower(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_set_txpower();
 	}
-	private void receive_hardware_io_port_status(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_hardware_io_port_status(BGAPIPacketReader r) {
 		int timestamp = r.r_uint32();
 		int port = r.r_uint8();
 		int irq = r.r_uint8();
 		int state = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_hardware_io_port_status(timestamp, port, irq, state);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_io_port_status(timestamp, port, irq, state);
 	}
-	private void receive_hardware_soft_timer(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_hardware_soft_timer(BGAPIPacketReader r) {
 		int handle = r.r_uint8();
-		for(BGAPIListener l : listeners) l.receive_hardware_soft_timer(handle);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_soft_timer(handle);
 	}
-	private void receive_hardware_adc_result(BGAPIPacket __packet) {
-		BGAPIPacketReader r = __packet.getPayloadReader();
+	private void receive_hardware_adc_result(BGAPIPacketReader r) {
 		int input = r.r_uint8();
 		int value = r.r_int16();
-		for(BGAPIListener l : listeners) l.receive_hardware_adc_result(input, value);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_hardware_adc_result(input, value);
 	}
 
 	// Callbacks for class test (index = 8)
-	private void receive_test_phy_tx(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_test_phy_tx();
+	private void receive_test_phy_tx(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_test_phy_tx();
 	}
-	private void receive_test_phy_rx(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_test_phy_rx();
+	private void receive_test_phy_rx(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_test_phy_rx();
 	}
-	private void receive_test_phy_end(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_test_phy_end(BGAPIPacketReader r) {
 		int counter = r.r_uint16();
-		for(BGAPIListener l : listeners) l.receive_test_phy_end(counter);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_test_phy_end(counter);
 	}
-	private void receive_test_phy_reset(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
-		for(BGAPIListener l : listeners) l.receive_test_phy_reset();
+	private void receive_test_phy_reset(BGAPIPacketReader r) {
+		for(BGAPIListener l : listeners.snapshot()) l.receive_test_phy_reset();
 	}
-	private void receive_test_get_channel_map(BGAPIPacket packet) {
-		BGAPIPacketReader r = packet.getPayloadReader();
+	private void receive_test_get_channel_map(BGAPIPacketReader r) {
 		byte[] channel_map = r.r_uint8array();
-		for(BGAPIListener l : listeners) l.receive_test_get_channel_map(channel_map);
+		for(BGAPIListener l : listeners.snapshot()) l.receive_test_get_channel_map(channel_map);
 	}
 
 
@@ -942,107 +1079,106 @@ public class BGAPI implements BGAPITransportListener {
 	public void send_system_reset(int boot_in_dfu) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 0);
 		p.w_uint8(boot_in_dfu);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_hello() {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 1);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_address_get() {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 2);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_reg_write(int address, int value) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 3);
 		p.w_uint16(address);
 		p.w_uint8(value);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_reg_read(int address) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 4);
 		p.w_uint16(address);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_get_counters() {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 5);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_get_connections() {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 6);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_read_memory(int address, int length) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 7);
 		p.w_uint32(address);
 		p.w_uint8(length);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_get_info() {
-		BGAPIPacket p = new BGAPIPacket(0, 0, 8);
-		bgapi.sendPacket(p);
+		send(build_system_get_info());
 	}
 	public void send_system_endpoint_tx(int endpoint, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 9);
 		p.w_uint8(endpoint);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_whitelist_append(BDAddr address, int address_type) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 10);
 		p.w_bd_addr(address);
 		p.w_uint8(address_type);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_whitelist_remove(BDAddr address, int address_type) {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 11);
 		p.w_bd_addr(address);
 		p.w_uint8(address_type);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_system_whitelist_clear() {
 		BGAPIPacket p = new BGAPIPacket(0, 0, 12);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class flash (index = 1)
 	public void send_flash_ps_defrag() {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 0);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_ps_dump() {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 1);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_ps_erase_all() {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 2);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_ps_save(int key, byte[] value) {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 3);
 		p.w_uint16(key);
 		p.w_uint8array(value);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_ps_load(int key) {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 4);
 		p.w_uint16(key);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_ps_erase(int key) {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 5);
 		p.w_uint16(key);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_erase_page(int page) {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 6);
 		p.w_uint8(page);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_flash_write_words(int address, byte[] words) {
 		BGAPIPacket p = new BGAPIPacket(0, 1, 7);
 		p.w_uint16(address);
 		p.w_uint8array(words);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class attributes (index = 2)
@@ -1051,37 +1187,35 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(handle);
 		p.w_uint8(offset);
 		p.w_uint8array(value);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attributes_read(int handle, int offset) {
 		BGAPIPacket p = new BGAPIPacket(0, 2, 1);
 		p.w_uint16(handle);
 		p.w_uint16(offset);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attributes_read_type(int handle) {
 		BGAPIPacket p = new BGAPIPacket(0, 2, 2);
 		p.w_uint16(handle);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attributes_user_response(int connection, int att_error, byte[] value) {
 		BGAPIPacket p = new BGAPIPacket(0, 2, 3);
 		p.w_uint8(connection);
 		p.w_uint8(att_error);
 		p.w_uint8array(value);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class connection (index = 3)
 	public void send_connection_disconnect(int connection) {
-		BGAPIPacket p = new BGAPIPacket(0, 3, 0);
-		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(build_connection_disconnect(connection));
 	}
 	public void send_connection_get_rssi(int connection) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 1);
 		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_update(int connection, int interval_min, int interval_max, int latency, int timeout) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 2);
@@ -1090,39 +1224,39 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(interval_max);
 		p.w_uint16(latency);
 		p.w_uint16(timeout);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_version_update(int connection) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 3);
 		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_channel_map_get(int connection) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 4);
 		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_channel_map_set(int connection, byte[] map) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 5);
 		p.w_uint8(connection);
 		p.w_uint8array(map);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_features_get(int connection) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 6);
 		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_get_status(int connection) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 7);
 		p.w_uint8(connection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_connection_raw_tx(int connection, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 3, 8);
 		p.w_uint8(connection);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class attclient (index = 4)
@@ -1133,15 +1267,10 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(end);
 		p.w_uint16(uuid);
 		p.w_uint8array(value);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_read_by_group_type(int connection, int start, int end, byte[] uuid) {
-		BGAPIPacket p = new BGAPIPacket(0, 4, 1);
-		p.w_uint8(connection);
-		p.w_uint16(start);
-		p.w_uint16(end);
-		p.w_uint8array(uuid);
-		bgapi.sendPacket(p);
+		send(build_attclient_read_by_group_type(connection, start, end, uuid));
 	}
 	public void send_attclient_read_by_type(int connection, int start, int end, byte[] uuid) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 2);
@@ -1149,44 +1278,36 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(start);
 		p.w_uint16(end);
 		p.w_uint8array(uuid);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_find_information(int connection, int start, int end) {
-		BGAPIPacket p = new BGAPIPacket(0, 4, 3);
-		p.w_uint8(connection);
-		p.w_uint16(start);
-		p.w_uint16(end);
-		bgapi.sendPacket(p);
+		send(build_attclient_find_information(connection, start, end));
 	}
 	public void send_attclient_read_by_handle(int connection, int chrhandle) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 4);
 		p.w_uint8(connection);
 		p.w_uint16(chrhandle);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_attribute_write(int connection, int atthandle, byte[] data) {
-		BGAPIPacket p = new BGAPIPacket(0, 4, 5);
-		p.w_uint8(connection);
-		p.w_uint16(atthandle);
-		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(build_attclient_attribute_write(connection, atthandle, data));
 	}
 	public void send_attclient_write_command(int connection, int atthandle, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 6);
 		p.w_uint8(connection);
 		p.w_uint16(atthandle);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_reserved() {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 7);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_read_long(int connection, int chrhandle) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 8);
 		p.w_uint8(connection);
 		p.w_uint16(chrhandle);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_prepare_write(int connection, int atthandle, int offset, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 9);
@@ -1194,19 +1315,19 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(atthandle);
 		p.w_uint16(offset);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_execute_write(int connection, int commit) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 10);
 		p.w_uint8(connection);
 		p.w_uint8(commit);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_attclient_read_multiple(int connection, byte[] handles) {
 		BGAPIPacket p = new BGAPIPacket(0, 4, 11);
 		p.w_uint8(connection);
 		p.w_uint8array(handles);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class sm (index = 5)
@@ -1214,39 +1335,39 @@ public class BGAPI implements BGAPITransportListener {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 0);
 		p.w_uint8(handle);
 		p.w_uint8(bonding);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_set_bondable_mode(int bondable) {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 1);
 		p.w_uint8(bondable);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_delete_bonding(int handle) {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 2);
 		p.w_uint8(handle);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_set_parameters(int mitm, int min_key_size, int io_capabilities) {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 3);
 		p.w_uint8(mitm);
 		p.w_uint8(min_key_size);
 		p.w_uint8(io_capabilities);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_passkey_entry(int handle, int passkey) {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 4);
 		p.w_uint8(handle);
 		p.w_uint32(passkey);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_get_bonds() {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 5);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_sm_set_oob_data(byte[] oob) {
 		BGAPIPacket p = new BGAPIPacket(0, 5, 6);
 		p.w_uint8array(oob);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class gap (index = 6)
@@ -1254,32 +1375,19 @@ public class BGAPI implements BGAPITransportListener {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 0);
 		p.w_uint8(peripheral_privacy);
 		p.w_uint8(central_privacy);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_gap_set_mode(int discover, int connect) {
-		BGAPIPacket p = new BGAPIPacket(0, 6, 1);
-		p.w_uint8(discover);
-		p.w_uint8(connect);
-		bgapi.sendPacket(p);
+		send(build_gap_set_mode(discover, connect));
 	}
 	public void send_gap_discover(int mode) {
-		BGAPIPacket p = new BGAPIPacket(0, 6, 2);
-		p.w_uint8(mode);
-		bgapi.sendPacket(p);
+		send(build_gap_discover(mode));
 	}
 	public void send_gap_connect_direct(BDAddr address, int addr_type, int conn_interval_min, int conn_interval_max, int timeout, int latency) {
-		BGAPIPacket p = new BGAPIPacket(0, 6, 3);
-		p.w_bd_addr(address);
-		p.w_uint8(addr_type);
-		p.w_uint16(conn_interval_min);
-		p.w_uint16(conn_interval_max);
-		p.w_uint16(timeout);
-		p.w_uint16(latency);
-		bgapi.sendPacket(p);
+		send(build_gap_connect_direct(address, addr_type, conn_interval_min, conn_interval_max, timeout, latency));
 	}
 	public void send_gap_end_procedure() {
-		BGAPIPacket p = new BGAPIPacket(0, 6, 4);
-		bgapi.sendPacket(p);
+		send(build_gap_end_procedure());
 	}
 	public void send_gap_connect_selective(int conn_interval_min, int conn_interval_max, int timeout, int latency) {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 5);
@@ -1287,40 +1395,36 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint16(conn_interval_max);
 		p.w_uint16(timeout);
 		p.w_uint16(latency);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_gap_set_filtering(int scan_policy, int adv_policy, int scan_duplicate_filtering) {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 6);
 		p.w_uint8(scan_policy);
 		p.w_uint8(adv_policy);
 		p.w_uint8(scan_duplicate_filtering);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_gap_set_scan_parameters(int scan_interval, int scan_window, int active) {
-		BGAPIPacket p = new BGAPIPacket(0, 6, 7);
-		p.w_uint16(scan_interval);
-		p.w_uint16(scan_window);
-		p.w_uint8(active);
-		bgapi.sendPacket(p);
+		send(build_gap_set_scan_parameters(scan_interval, scan_window, active));
 	}
 	public void send_gap_set_adv_parameters(int adv_interval_min, int adv_interval_max, int adv_channels) {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 8);
 		p.w_uint16(adv_interval_min);
 		p.w_uint16(adv_interval_max);
 		p.w_uint8(adv_channels);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_gap_set_adv_data(int set_scanrsp, byte[] adv_data) {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 9);
 		p.w_uint8(set_scanrsp);
 		p.w_uint8array(adv_data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_gap_set_directed_connectable_mode(BDAddr address, int addr_type) {
 		BGAPIPacket p = new BGAPIPacket(0, 6, 10);
 		p.w_bd_addr(address);
 		p.w_uint8(addr_type);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class hardware (index = 7)
@@ -1329,53 +1433,53 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint8(port);
 		p.w_uint8(enable_bits);
 		p.w_uint8(falling_edge);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_set_soft_timer(int time, int handle, int single_shot) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 1);
 		p.w_uint32(time);
 		p.w_uint8(handle);
 		p.w_uint8(single_shot);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_adc_read(int input, int decimation, int reference_selection) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 2);
 		p.w_uint8(input);
 		p.w_uint8(decimation);
 		p.w_uint8(reference_selection);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_io_port_config_direction(int port, int direction) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 3);
 		p.w_uint8(port);
 		p.w_uint8(direction);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_io_port_config_function(int port, int function) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 4);
 		p.w_uint8(port);
 		p.w_uint8(function);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_io_port_config_pull(int port, int tristate_mask, int pull_up) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 5);
 		p.w_uint8(port);
 		p.w_uint8(tristate_mask);
 		p.w_uint8(pull_up);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_io_port_write(int port, int mask, int data) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 6);
 		p.w_uint8(port);
 		p.w_uint8(mask);
 		p.w_uint8(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_io_port_read(int port, int mask) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 7);
 		p.w_uint8(port);
 		p.w_uint8(mask);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_spi_config(int channel, int polarity, int phase, int bit_order, int baud_e, int baud_m) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 8);
@@ -1385,30 +1489,30 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint8(bit_order);
 		p.w_uint8(baud_e);
 		p.w_uint8(baud_m);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_spi_transfer(int channel, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 9);
 		p.w_uint8(channel);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_i2c_read(int address, int length) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 10);
 		p.w_uint8(address);
 		p.w_uint8(length);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_i2c_write(int address, byte[] data) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 11);
 		p.w_uint8(address);
 		p.w_uint8array(data);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_hardware_set_txpower(int power) {
 		BGAPIPacket p = new BGAPIPacket(0, 7, 12);
 		p.w_uint8(power);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
 	// Callbacks for class test (index = 8)
@@ -1417,25 +1521,121 @@ public class BGAPI implements BGAPITransportListener {
 		p.w_uint8(channel);
 		p.w_uint8(length);
 		p.w_uint8(type);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_test_phy_rx(int channel) {
 		BGAPIPacket p = new BGAPIPacket(0, 8, 1);
 		p.w_uint8(channel);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_test_phy_end() {
 		BGAPIPacket p = new BGAPIPacket(0, 8, 2);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_test_phy_reset() {
 		BGAPIPacket p = new BGAPIPacket(0, 8, 3);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 	public void send_test_get_channel_map() {
 		BGAPIPacket p = new BGAPIPacket(0, 8, 4);
-		bgapi.sendPacket(p);
+		send(p);
 	}
 
-    
-}
\ No newline at end of file
+
+
+	// Asynchronous variants of the commands used to set up a connection.
+	// The futures are completed with the response packets (see sendCommand).
+	public CompletableFuture<BGAPIPacket> send_system_get_info_async(long timeout) {
+		return sendCommand(build_system_get_info(), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_connection_disconnect_async(int connection, long timeout) {
+		return sendCommand(build_connection_disconnect(connection), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_attclient_read_by_group_type_async(int connection, int start, int end, byte[] uuid, long timeout) {
+		return sendCommand(build_attclient_read_by_group_type(connection, start, end, uuid), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_attclient_find_information_async(int connection, int start, int end, long timeout) {
+		return sendCommand(build_attclient_find_information(connection, start, end), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_attclient_attribute_write_async(int connection, int atthandle, byte[] data, long timeout) {
+		return sendCommand(build_attclient_attribute_write(connection, atthandle, data), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_gap_set_mode_async(int discover, int connect, long timeout) {
+		return sendCommand(build_gap_set_mode(discover, connect), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_gap_discover_async(int mode, long timeout) {
+		return sendCommand(build_gap_discover(mode), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_gap_connect_direct_async(BDAddr address, int addr_type, int conn_interval_min, int conn_interval_max, int timeout, int latency, long response_timeout) {
+		return sendCommand(build_gap_connect_direct(address, addr_type, conn_interval_min, conn_interval_max, timeout, latency), response_timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_gap_end_procedure_async(long timeout) {
+		return sendCommand(build_gap_end_procedure(), timeout);
+	}
+	public CompletableFuture<BGAPIPacket> send_gap_set_scan_parameters_async(int scan_interval, int scan_window, int active, long timeout) {
+		return sendCommand(build_gap_set_scan_parameters(scan_interval, scan_window, active), timeout);
+	}
+
+	// Packets of the commands which have an asynchronous variant
+	private BGAPIPacket build_system_get_info() {
+		return new BGAPIPacket(0, 0, 8);
+	}
+	private BGAPIPacket build_connection_disconnect(int connection) {
+		BGAPIPacket p = new BGAPIPacket(0, 3, 0);
+		p.w_uint8(connection);
+		return p;
+	}
+	private BGAPIPacket build_attclient_read_by_group_type(int connection, int start, int end, byte[] uuid) {
+		BGAPIPacket p = new BGAPIPacket(0, 4, 1);
+		p.w_uint8(connection);
+		p.w_uint16(start);
+		p.w_uint16(end);
+		p.w_uint8array(uuid);
+		return p;
+	}
+	private BGAPIPacket build_attclient_find_information(int connection, int start, int end) {
+		BGAPIPacket p = new BGAPIPacket(0, 4, 3);
+		p.w_uint8(connection);
+		p.w_uint16(start);
+		p.w_uint16(end);
+		return p;
+	}
+	private BGAPIPacket build_attclient_attribute_write(int connection, int atthandle, byte[] data) {
+		BGAPIPacket p = new BGAPIPacket(0, 4, 5);
+		p.w_uint8(connection);
+		p.w_uint16(atthandle);
+		p.w_uint8array(data);
+		return p;
+	}
+	private BGAPIPacket build_gap_set_mode(int discover, int connect) {
+		BGAPIPacket p = new BGAPIPacket(0, 6, 1);
+		p.w_uint8(discover);
+		p.w_uint8(connect);
+		return p;
+	}
+	private BGAPIPacket build_gap_discover(int mode) {
+		BGAPIPacket p = new BGAPIPacket(0, 6, 2);
+		p.w_uint8(mode);
+		return p;
+	}
+	private BGAPIPacket build_gap_connect_direct(BDAddr address, int addr_type, int conn_interval_min, int conn_interval_max, int timeout, int latency) {
+		BGAPIPacket p = new BGAPIPacket(0, 6, 3);
+		p.w_bd_addr(address);
+		p.w_uint8(addr_type);
+		p.w_uint16(conn_interval_min);
+		p.w_uint16(conn_interval_max);
+		p.w_uint16(timeout);
+		p.w_uint16(latency);
+		return p;
+	}
+	private BGAPIPacket build_gap_end_procedure() {
+		return new BGAPIPacket(0, 6, 4);
+	}
+	private BGAPIPacket build_gap_set_scan_parameters(int scan_interval, int scan_window, int active) {
+		BGAPIPacket p = new BGAPIPacket(0, 6, 7);
+		p.w_uint16(scan_interval);
+		p.w_uint16(scan_window);
+		p.w_uint8(active);
+		return p;
+	}
+}
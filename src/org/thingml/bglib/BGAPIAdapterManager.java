@@ -0,0 +1,379 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives several BLED112 dongles together.
+ *
+ * Each adapter has its own transport and BGAPI instance. New connections are
+ * placed on the adapter with the most free connection slots (a BLED112
+ * supports a limited number of simultaneous connections, queried with
+ * system_get_connections), and the packets received by all the adapters are
+ * merged into a single feed: every packet is stamped on arrival and the feed
+ * listeners get them in timestamp order, from one dispatcher thread.
+ */
+public class BGAPIAdapterManager {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 3; // BLED112 factory firmware
+    public static final long COMMAND_TIMEOUT = 1000;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    public interface FeedListener {
+        /**
+         * @param timestamp nanoseconds since the epoch at which the packet was received
+         * @param packet a copy of the received packet, which can be kept
+         */
+        void packetReceived(Adapter adapter, long timestamp, BGAPIPacket packet);
+    }
+
+    /**
+     * One dongle and its connections.
+     */
+    public class Adapter {
+
+        private final int index;
+        private final String name;
+        private final BGAPI bgapi;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        // connection handle -> peer address, for established connections
+        private final Map<Integer, BDAddr> connections = new HashMap<Integer, BDAddr>();
+        // connection handle -> connection accepted by connect_direct, not established yet
+        private final Map<Integer, PendingConnect> pending = new HashMap<Integer, PendingConnect>();
+        private int connecting = 0; // connect_direct sent, no response yet
+
+        private Adapter(int index, String name, BGAPI bgapi) {
+            this.index = index;
+            this.name = name;
+            this.bgapi = bgapi;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public BGAPI getBGAPI() {
+            return bgapi;
+        }
+
+        public int getMaxConnections() {
+            synchronized (BGAPIAdapterManager.this) {
+                return maxConnections;
+            }
+        }
+
+        /**
+         * @return the number of connections used or being set up
+         */
+        public int getLoad() {
+            synchronized (BGAPIAdapterManager.this) {
+                return connections.size() + pending.size() + connecting;
+            }
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final List<Adapter> adapters = new ArrayList<Adapter>();
+
+    private final BGAPIListenerList<FeedListener> feedListeners = new BGAPIListenerList<FeedListener>(new FeedListener[0]);
+    private final ArrayBlockingQueue<FeedEntry> feed;
+    private final Object feedLock = new Object();
+    private final long epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    private long droppedPackets = 0;
+    private Thread dispatcher = null;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    public BGAPIAdapterManager(int feedCapacity) {
+        feed = new ArrayBlockingQueue<FeedEntry>(feedCapacity);
+    }
+
+    /**
+     * Adds an adapter and queries how many connections it supports.
+     */
+    public synchronized Adapter addAdapter(String name, BGAPITransport transport) {
+        final Adapter adapter = new Adapter(adapters.size(), name, new BGAPI(transport));
+        adapters.add(adapter);
+        adapter.bgapi.addListener(new ConnectionTracker(adapter));
+        transport.addListener(new BGAPITransportListener() {
+            public void packetSent(BGAPIPacket packet) {}
+            public void packetReceived(BGAPIPacket packet) {
+                enqueue(adapter, packet);
+            }
+        });
+        adapter.bgapi.sendCommand(new BGAPIPacket(0, 0, 6), COMMAND_TIMEOUT).thenAccept(response -> {
+            int maxconn = response.getPayloadReader().r_uint8();
+            synchronized (BGAPIAdapterManager.this) {
+                if (maxconn > 0) adapter.maxConnections = maxconn;
+            }
+        });
+        return adapter;
+    }
+
+    /**
+     * @param connectTimeout time (ms) after which a connection which is not
+     * established yet is abandoned, and its slot freed
+     */
+    public synchronized void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public synchronized List<Adapter> getAdapters() {
+        return Collections.unmodifiableList(new ArrayList<Adapter>(adapters));
+    }
+
+    /**
+     * @return the adapter which has the most free connection slots, or null
+     * if all of them are full
+     */
+    public synchronized Adapter selectAdapter() {
+        Adapter best = null;
+        int bestFree = 0;
+        for (Adapter a : adapters) {
+            int free = a.maxConnections - a.connections.size() - a.pending.size() - a.connecting;
+            if (free > bestFree) {
+                best = a;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the adapter connected (or connecting) to address, or null
+     */
+    public synchronized Adapter findAdapter(BDAddr address) {
+        for (Adapter a : adapters) {
+            for (BDAddr peer : a.connections.values()) {
+                if (peer.equals(address)) return a;
+            }
+            for (PendingConnect c : a.pending.values()) {
+                if (c.address.equals(address)) return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connects to address through the least loaded adapter, unless one of
+     * them is already connected to it. The future is completed with the
+     * gap_connect_direct response of the adapter, and fails when all the
+     * adapters are full. A connection which is not established within the
+     * connect timeout is cancelled with gap_end_procedure.
+     */
+    public CompletableFuture<BGAPIPacket> connect(final BDAddr address, int addr_type, int conn_interval_min, int conn_interval_max, int timeout, int latency) {
+        final Adapter adapter;
+        synchronized (this) {
+            if (findAdapter(address) != null) {
+                CompletableFuture<BGAPIPacket> f = new CompletableFuture<BGAPIPacket>();
+                f.completeExceptionally(new IllegalStateException("Already connected to " + address));
+                return f;
+            }
+            adapter = selectAdapter();
+            if (adapter == null) {
+                CompletableFuture<BGAPIPacket> f = new CompletableFuture<BGAPIPacket>();
+                f.completeExceptionally(new IllegalStateException("No free connection on any adapter."));
+                return f;
+            }
+            adapter.connecting++;
+        }
+        CompletableFuture<BGAPIPacket> result = adapter.bgapi.send_gap_connect_direct_async(address, addr_type, conn_interval_min, conn_interval_max, timeout, latency, COMMAND_TIMEOUT);
+        return result.whenComplete((response, error) -> {
+            synchronized (BGAPIAdapterManager.this) {
+                adapter.connecting--;
+                if (response != null) {
+                    BGAPIPacketReader r = response.getPayloadReader();
+                    int status = r.r_uint16();
+                    int handle = r.r_uint8();
+                    // connection_status moves it to the connections once connected
+                    if (status == 0) {
+                        final PendingConnect c = new PendingConnect(address);
+                        adapter.pending.put(handle, c);
+                        BGAPI.getTimeoutScheduler().schedule(() -> expire(adapter, handle, c), connectTimeout, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        });
+    }
+
+    private void expire(Adapter adapter, int handle, PendingConnect c) {
+        synchronized (this) {
+            if (adapter.pending.get(handle) != c) return; // connected or cancelled meanwhile
+            adapter.pending.remove(handle);
+        }
+        Logger.getLogger(BGAPIAdapterManager.class.getName()).log(Level.INFO, "Connection to {0} through {1} timed out.", new Object[]{c.address, adapter});
+        adapter.bgapi.send_gap_end_procedure();
+    }
+
+    /**
+     * Aborts the connection attempts of adapter which did not succeed yet.
+     */
+    public void cancelPendingConnects(Adapter adapter) {
+        adapter.bgapi.send_gap_end_procedure();
+        synchronized (this) {
+            adapter.pending.clear();
+        }
+    }
+
+    /* ***********************************************************************
+     * Merged feed
+     *************************************************************************/
+
+    public void addFeedListener(FeedListener l) {
+        feedListeners.add(l);
+    }
+
+    public void removeFeedListener(FeedListener l) {
+        feedListeners.remove(l);
+    }
+
+    /**
+     * @return the number of packets which did not fit in the feed queue
+     */
+    public long getDroppedPackets() {
+        synchronized (feedLock) {
+            return droppedPackets;
+        }
+    }
+
+    public synchronized void start() {
+        if (dispatcher != null) return;
+        dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatchLoop();
+            }
+        }, "BGAPI adapter feed");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stops the feed and disconnects all the adapters.
+     */
+    public void stop() {
+        Thread t;
+        List<Adapter> all;
+        synchronized (this) {
+            t = dispatcher;
+            dispatcher = null;
+            all = new ArrayList<Adapter>(adapters);
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Adapter a : all) a.bgapi.disconnect();
+    }
+
+    private void enqueue(Adapter adapter, BGAPIPacket packet) {
+        if (feedListeners.isEmpty()) return;
+        BGAPIPacket copy = packet.copy(); // the transport may recycle the packet
+        // Stamping and queuing under the same lock keeps the feed in timestamp order
+        synchronized (feedLock) {
+            if (!feed.offer(new FeedEntry(adapter, epochOffset + System.nanoTime(), copy))) droppedPackets++;
+        }
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                FeedEntry e = feed.poll(100, TimeUnit.MILLISECONDS);
+                if (e == null) continue;
+                for (FeedListener l : feedListeners.snapshot()) {
+                    try {
+                        l.packetReceived(e.adapter, e.timestamp, e.packet);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(BGAPIAdapterManager.class.getName()).log(Level.SEVERE, "Feed listener failed.", ex);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private static class FeedEntry {
+        final Adapter adapter;
+        final long timestamp;
+        final BGAPIPacket packet;
+
+        FeedEntry(Adapter adapter, long timestamp, BGAPIPacket packet) {
+            this.adapter = adapter;
+            this.timestamp = timestamp;
+            this.packet = packet;
+        }
+    }
+
+    /* ***********************************************************************
+     * Connection tracking
+     *************************************************************************/
+
+    // A connection which is not established yet
+    private static class PendingConnect {
+        final BDAddr address;
+
+        PendingConnect(BDAddr address) {
+            this.address = address;
+        }
+    }
+
+    private class ConnectionTracker extends BGAPIDefaultListener {
+
+        private final Adapter adapter;
+
+        ConnectionTracker(Adapter adapter) {
+            this.adapter = adapter;
+        }
+
+        @Override
+        public void receive_connection_status(int connection, int flags, BDAddr address, int address_type, int conn_interval, int timeout, int latency, int bonding) {
+            synchronized (BGAPIAdapterManager.this) {
+                adapter.pending.remove(connection);
+                if ((flags & 0x01) != 0) adapter.connections.put(connection, address);
+                else adapter.connections.remove(connection);
+            }
+        }
+
+        @Override
+        public void receive_connection_disconnected(int connection, int reason) {
+            synchronized (BGAPIAdapterManager.this) {
+                adapter.pending.remove(connection);
+                adapter.connections.remove(connection);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a capture file written by BGAPICaptureWriter, one at
+ * a time:
+ *
+ *   while (reader.next()) decode(reader.getFrame(), 0, reader.getFrameLength());
+ *
+ * The frame array is reused for every record. A record truncated at the end
+ * of the file (e.g. after a crash) is ignored.
+ */
+public class BGAPICaptureReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private boolean eof = false;
+
+    private long timestamp;
+    private byte direction;
+    private final byte[] frame = new byte[BGAPIFrameDecoder.HEADER_SIZE + BGAPIFrameDecoder.MAX_PAYLOAD_LENGTH];
+    private int frameLength;
+
+    public BGAPICaptureReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer.limit(0);
+        if (!fill(BGAPICaptureWriter.FILE_HEADER_SIZE)) throw new IOException("Not a BGAPI capture file: " + file);
+        byte[] magic = new byte[BGAPICaptureWriter.MAGIC.length];
+        buffer.get(magic);
+        int version = buffer.get();
+        if (!Arrays.equals(magic, BGAPICaptureWriter.MAGIC) || version != BGAPICaptureWriter.VERSION) {
+            throw new IOException("Not a BGAPI capture file: " + file);
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        if (!fill(BGAPICaptureWriter.RECORD_HEADER_SIZE)) return false;
+        timestamp = buffer.getLong();
+        direction = buffer.get();
+        frameLength = buffer.getShort() & 0xFFFF;
+        if (frameLength > frame.length) throw new IOException("Corrupted capture file.");
+        if (!fill(frameLength)) return false;
+        buffer.get(frame, 0, frameLength);
+        return true;
+    }
+
+    // Makes sure that at least n bytes are buffered
+    private boolean fill(int n) throws IOException {
+        while (buffer.remaining() < n) {
+            if (eof) return false;
+            buffer.compact();
+            if (channel.read(buffer) < 0) eof = true;
+            buffer.flip();
+        }
+        return true;
+    }
+
+    /**
+     * @return nanoseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return BGAPICaptureWriter.RECEIVED or BGAPICaptureWriter.SENT
+     */
+    public byte getDirection() {
+        return direction;
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the packets sent and received by a transport in a binary capture
+ * file, which can be played back with BGAPIReplayTransport.
+ *
+ * The file starts with the 4 bytes "BGCP" and a version byte, followed by
+ * one record per packet (big endian):
+ *
+ *   timestamp  8 bytes, nanoseconds since the epoch
+ *   direction  1 byte, RECEIVED or SENT
+ *   length     2 bytes, size of the frame
+ *   frame      header and payload, as on the wire
+ *
+ * Records are gathered in a buffer which is written to the file when it is
+ * full, on flush() and on close().
+ */
+public class BGAPICaptureWriter implements BGAPITransportListener, Closeable {
+
+    public static final byte[] MAGIC = {'B', 'G', 'C', 'P'};
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 5;
+    public static final int RECORD_HEADER_SIZE = 11;
+
+    public static final byte RECEIVED = 0;
+    public static final byte SENT = 1;
+
+    private static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + BGAPIFrameDecoder.HEADER_SIZE + BGAPIFrameDecoder.MAX_PAYLOAD_LENGTH;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    private long records = 0;
+
+    public BGAPICaptureWriter(Path file) throws IOException {
+        this(file, 64 * 1024);
+    }
+
+    public BGAPICaptureWriter(Path file, int bufferSize) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_RECORD_SIZE));
+        buffer.put(MAGIC).put((byte) VERSION);
+    }
+
+    public void packetSent(BGAPIPacket packet) {
+        record(SENT, packet);
+    }
+
+    public void packetReceived(BGAPIPacket packet) {
+        record(RECEIVED, packet);
+    }
+
+    /**
+     * @return the number of packets recorded
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    private synchronized void record(byte direction, BGAPIPacket packet) {
+        if (!channel.isOpen()) return;
+        try {
+            if (buffer.remaining() < MAX_RECORD_SIZE) write();
+            int start = buffer.position();
+            int length = packet.writePacketBytes(buffer.array(), start + RECORD_HEADER_SIZE);
+            buffer.putLong(epochOffset + System.nanoTime()).put(direction).putShort((short) length);
+            buffer.position(start + RECORD_HEADER_SIZE + length);
+            records++;
+        } catch (IOException e) {
+            Logger.getLogger(BGAPICaptureWriter.class.getName()).log(Level.SEVERE, "Capture stopped.", e);
+            close();
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     */
+    public synchronized void flush() throws IOException {
+        write();
+    }
+
+    public synchronized void close() {
+        if (!channel.isOpen()) return;
+        try {
+            write();
+            channel.close();
+        } catch (IOException e) {
+            Logger.getLogger(BGAPICaptureWriter.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * BGAPI transport on top of NIO channels (e.g. a serial device node opened
+ * as a FileChannel, a pipe or a socket). Bytes are read into a direct buffer
+ * and decoded from there, so there is no intermediate heap array.
+ *
+ * The channels have to be in blocking mode.
+ */
+public class BGAPIChannelTransport extends BGAPITransport {
+
+    protected ReadableByteChannel rx;
+    protected WritableByteChannel tx;
+
+    private final ByteBuffer rxbuffer = ByteBuffer.allocateDirect(4096);
+    private final ByteBuffer txbuffer = ByteBuffer.allocateDirect(BGAPIFrameDecoder.HEADER_SIZE + BGAPIFrameDecoder.MAX_PAYLOAD_LENGTH);
+
+    public BGAPIChannelTransport(ReadableByteChannel rx, WritableByteChannel tx) {
+        this.rx = rx;
+        this.tx = tx;
+        start();
+    }
+
+    /**
+     * Opens a device node (e.g. /dev/ttyACM0) for reading and writing. The
+     * serial line has to be configured beforehand (e.g. using stty).
+     */
+    public static BGAPIChannelTransport open(Path device) throws IOException {
+        FileChannel channel = FileChannel.open(device, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new BGAPIChannelTransport(channel, channel);
+    }
+
+    @Override
+    protected int receive() throws IOException {
+        rxbuffer.clear();
+        int len = rx.read(rxbuffer);
+        if (len > 0) {
+            rxbuffer.flip();
+            decoder.decode(rxbuffer);
+        }
+        return len;
+    }
+
+    @Override
+    protected synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, txbuffer.capacity());
+            txbuffer.clear();
+            txbuffer.put(bytes, offset, n);
+            txbuffer.flip();
+            while (txbuffer.hasRemaining()) tx.write(txbuffer);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    protected void closeInput() throws IOException {
+        rx.close();
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers BGAPI events to the listeners away from the receiver thread (see
+ * BGAPI.setEventExecutor), so that slow listeners do not hold up the serial
+ * port.
+ *
+ * Events are queued in lanes which run one event at a time, in order, on a
+ * backing executor. Either all events share one lane, or every connection
+ * gets its own lane (plus one lane for the events which do not belong to a
+ * connection), in which case the events of a connection stay ordered while
+ * different connections are delivered in parallel. The receiver thread is
+ * never blocked: events which can be shed (scan responses, see BGAPI) are
+ * dropped and counted when their lane already holds capacity events, the
+ * other ones are always queued, so that no procedure event is lost.
+ */
+public class BGAPIEventExecutor {
+
+    public static final int GLOBAL_LANE = 0;
+    private static final int LANES = 257; // global lane + one per connection handle
+
+    /**
+     * All events in order on a dedicated thread.
+     */
+    public static BGAPIEventExecutor ordered(int capacity) {
+        return new BGAPIEventExecutor(Executors.newSingleThreadExecutor(daemonThreads("BGAPI events")), capacity, false, true);
+    }
+
+    /**
+     * All events in order on the given executor (e.g. the Swing event
+     * dispatch thread).
+     */
+    public static BGAPIEventExecutor serial(Executor backing, int capacity) {
+        return new BGAPIEventExecutor(backing, capacity, false, false);
+    }
+
+    /**
+     * One lane per connection on the given executor, which should be able to
+     * run several tasks concurrently (e.g. a thread pool).
+     */
+    public static BGAPIEventExecutor perConnection(Executor backing, int capacity) {
+        return new BGAPIEventExecutor(backing, capacity, true, false);
+    }
+
+    /**
+     * One lane per connection, each running on virtual threads when the JVM
+     * supports them (Java 21 and later), or on a cached pool of daemon
+     * threads otherwise.
+     */
+    public static BGAPIEventExecutor virtualThreads(int capacity) {
+        ExecutorService backing;
+        try {
+            backing = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            backing = Executors.newCachedThreadPool(daemonThreads("BGAPI events"));
+        }
+        return new BGAPIEventExecutor(backing, capacity, true, true);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private final Executor backing;
+    private final boolean ownsBacking;
+    private final int capacity;
+    private final boolean perConnection;
+    private final AtomicReferenceArray<Lane> lanes = new AtomicReferenceArray<Lane>(LANES);
+
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    protected BGAPIEventExecutor(Executor backing, int capacity, boolean perConnection, boolean ownsBacking) {
+        this.backing = backing;
+        this.capacity = capacity;
+        this.perConnection = perConnection;
+        this.ownsBacking = ownsBacking;
+    }
+
+    /**
+     * @return the number of sheddable events dropped because their lane was full
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    /**
+     * Queues an event which is never dropped.
+     *
+     * @param lane GLOBAL_LANE, or the connection handle + 1
+     */
+    public void execute(int lane, Runnable event) {
+        execute(lane, event, false);
+    }
+
+    /**
+     * @param lane GLOBAL_LANE, or the connection handle + 1
+     * @param sheddable true if the event can be dropped when the lane is full
+     */
+    public void execute(int lane, Runnable event, boolean sheddable) {
+        if (shutdown) return; // the receiver thread may still deliver a few packets
+        if (!perConnection || lane < 0 || lane >= LANES) lane = GLOBAL_LANE;
+        if (!getLane(lane).submit(event, sheddable)) overflows.incrementAndGet();
+    }
+
+    private Lane getLane(int lane) {
+        Lane l = lanes.get(lane);
+        if (l == null) {
+            lanes.compareAndSet(lane, null, new Lane());
+            l = lanes.get(lane);
+        }
+        return l;
+    }
+
+    /**
+     * Stops the threads created by this executor. Executors passed by the
+     * caller are left alone. Events submitted afterwards are discarded.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (ownsBacking) ((ExecutorService) backing).shutdown();
+    }
+
+    private class Lane implements Runnable {
+
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // Only sheddable events are bounded by the capacity, the others grow the lane
+        boolean submit(Runnable event, boolean sheddable) {
+            if (sheddable && size.get() >= capacity) return false;
+            size.incrementAndGet();
+            queue.offer(event);
+            if (scheduled.compareAndSet(false, true)) schedule();
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                backing.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The backing executor is shut down, nothing will run the queued events
+                queue.clear();
+                size.set(0);
+                scheduled.set(false);
+            }
+        }
+
+        public void run() {
+            Runnable event;
+            while ((event = queue.poll()) != null) {
+                size.decrementAndGet();
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    Logger.getLogger(BGAPIEventExecutor.class.getName()).log(Level.SEVERE, "BGAPI listener failed.", e);
+                }
+            }
+            scheduled.set(false);
+            // An event may have been queued after the last poll
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) schedule();
+        }
+    }
+
+}
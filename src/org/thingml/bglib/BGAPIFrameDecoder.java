@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts a raw BGAPI byte stream into packets.
+ *
+ * Incoming bytes are copied in bulk into a single reusable frame buffer
+ * which always holds the header and the payload of the current packet. When
+ * packet recycling is enabled, complete frames are handed out through one
+ * flyweight BGAPIPacket which wraps the frame buffer, so decoding does not
+ * allocate anything. Such packets are only valid during the callback and
+ * must be copied (see BGAPIPacket.copy()) to be kept.
+ *
+ * Every header is checked before its payload is read (technology type,
+ * payload length, class ID). A header validator can check the message
+ * further; BGAPI installs one rejecting known messages whose payload is too
+ * short. Unknown messages are still framed, so that the listeners can
+ * ignore them. When a header is not valid,
+ * its first byte is discarded and the decoder scans forward until it finds
+ * a valid header again, so a lost or corrupted byte only costs the packets
+ * around it instead of misaligning all the following frames.
+ */
+public class BGAPIFrameDecoder {
+
+    public interface FrameListener {
+        void frameReceived(BGAPIPacket packet);
+    }
+
+    public interface HeaderValidator {
+        /**
+         * Called for the headers which passed the structural checks.
+         *
+         * @return false if the message cannot have this payload length
+         */
+        boolean isValidHeader(int msgType, int classID, int commandID, int payloadLength);
+    }
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_PAYLOAD_LENGTH = 0x7FF; // 11 bits length field
+
+    public static final int MAX_CLASS_ID = 8;    // test class, the last one of the Bluetooth Smart API
+    // No Bluetooth Smart message gets close to this, the longest ones carry a single uint8array
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 512;
+
+    private final FrameListener listener;
+
+    private final byte[] frame = new byte[HEADER_SIZE + MAX_PAYLOAD_LENGTH];
+    private int idx = 0;
+    private int expected = HEADER_SIZE;
+
+    private final BGAPIPacket flyweight = new BGAPIPacket();
+    private boolean recyclePackets = false;
+
+    private int maxPayloadLength = DEFAULT_MAX_PAYLOAD_LENGTH;
+    private volatile HeaderValidator validator = null;
+
+    private long decodedPackets = 0;
+    private long discardedBytes = 0;
+    private long resyncs = 0;
+    private boolean resyncing = false;
+
+    public BGAPIFrameDecoder(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isRecyclePackets() {
+        return recyclePackets;
+    }
+
+    /**
+     * If true, the same packet instance is passed to the listener for every
+     * frame. Otherwise every frame is delivered as a new packet.
+     */
+    public void setRecyclePackets(boolean recyclePackets) {
+        this.recyclePackets = recyclePackets;
+    }
+
+    public long getDecodedPackets() {
+        return decodedPackets;
+    }
+
+    /**
+     * @return the number of bytes skipped while looking for a valid header
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    /**
+     * @return the number of times the framing was lost and searched again
+     */
+    public long getResyncCount() {
+        return resyncs;
+    }
+
+    public int getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+
+    /**
+     * Headers announcing a longer payload are considered corrupted.
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        if (maxPayloadLength < 0 || maxPayloadLength > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException("Invalid payload length: " + maxPayloadLength);
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Adds a check of the message to the structural ones, null to remove it.
+     */
+    public void setHeaderValidator(HeaderValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Checks the header starting at buf[offset].
+     */
+    public boolean isValidHeader(byte[] buf, int offset) {
+        if ((buf[offset] & 0x78) != 0) return false; // technology type, 0 for Bluetooth Smart
+        int payloadLength = ((buf[offset] & 0x07) << 8) + (buf[offset + 1] & 0xFF);
+        if (payloadLength > maxPayloadLength) return false;
+        int classID = buf[offset + 2] & 0xFF;
+        if (classID > MAX_CLASS_ID) return false;
+        HeaderValidator v = validator;
+        return v == null || v.isValidHeader((buf[offset] >> 7) & 1, classID, buf[offset + 3] & 0xFF, payloadLength);
+    }
+
+    /**
+     * Drops a partially received frame.
+     */
+    public void reset() {
+        idx = 0;
+        expected = HEADER_SIZE;
+    }
+
+    public void decode(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, expected - idx);
+            System.arraycopy(buffer, offset, frame, idx, n);
+            idx += n;
+            offset += n;
+            length -= n;
+            if (idx == expected) frameFilled();
+        }
+    }
+
+    /**
+     * Decodes all the remaining bytes of buffer, which can be a direct
+     * buffer filled by a channel.
+     */
+    public void decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int n = Math.min(buffer.remaining(), expected - idx);
+            buffer.get(frame, idx, n);
+            idx += n;
+            if (idx == expected) frameFilled();
+        }
+    }
+
+    private void frameFilled() {
+        if (idx == HEADER_SIZE) { // We got the whole header
+            if (!isValidHeader(frame, 0)) {
+                // Drop the first byte and try again with the next one
+                if (!resyncing) {
+                    resyncing = true;
+                    resyncs++;
+                }
+                discardedBytes++;
+                System.arraycopy(frame, 1, frame, 0, HEADER_SIZE - 1);
+                idx = HEADER_SIZE - 1;
+                return;
+            }
+            resyncing = false;
+            int payloadLength = ((frame[0] & 0x07) << 8) + (frame[1] & 0xFF);
+            if (payloadLength > 0) { // there is a payload
+                expected = HEADER_SIZE + payloadLength;
+                return;
+            }
+        }
+        frameComplete(); // We got a complete message
+    }
+
+    private void frameComplete() {
+        flyweight.wrap(frame, 0);
+        idx = 0;
+        expected = HEADER_SIZE;
+        decodedPackets++;
+        listener.frameReceived(recyclePackets ? flyweight : flyweight.copy());
+    }
+
+}
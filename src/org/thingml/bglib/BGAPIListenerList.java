@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of listeners.
+ *
+ * Listeners are added and removed from any thread while the receiver thread
+ * notifies them. Every change publishes a new array, so iterating over
+ * snapshot() needs neither a lock nor an iterator, and a listener added or
+ * removed during a notification only takes effect for the next one.
+ */
+public class BGAPIListenerList<T> {
+
+    private volatile T[] listeners;
+
+    /**
+     * @param empty an empty array of the listener type
+     */
+    public BGAPIListenerList(T[] empty) {
+        listeners = empty;
+    }
+
+    public synchronized void add(T l) {
+        T[] current = listeners;
+        T[] result = Arrays.copyOf(current, current.length + 1);
+        result[current.length] = l;
+        listeners = result;
+    }
+
+    public synchronized void remove(T l) {
+        T[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == l) {
+                T[] result = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, result, i, current.length - i - 1);
+                listeners = result;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the current listeners. The array must not be modified.
+     */
+    public T[] snapshot() {
+        return listeners;
+    }
+
+    public int size() {
+        return listeners.length;
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+}
@@ -16,9 +16,6 @@
 package org.thingml.bglib;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  *
@@ -47,17 +44,36 @@ public class BGAPIPacket {
         return payloadLength;
     }
     
-    protected ByteArrayOutputStream data = new ByteArrayOutputStream();
+    protected PayloadBuffer data = new PayloadBuffer();
+    
+    /**
+     * Gives access to the internal array so that the payload can be copied
+     * out without toByteArray().
+     */
+    protected static class PayloadBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+    
+    // When set, the payload is read in place from this buffer instead of data
+    protected byte[] frame = null;
+    protected int frameOffset;
 
     public ByteArrayOutputStream getPayloadData() {
+        if (frame != null) { // materialize a wrapped payload on demand
+            data.reset();
+            data.write(frame, frameOffset, payloadLength);
+            frame = null;
+        }
         return data;
     }
     
     public BGAPIPacket(byte[] header) {
         msgType = (header[0] & 0xFF) >> 7;
-        payloadLength = ((header[0] & 0x07) << 8) + header[1];
-        classID = header[2];
-        commandID = header[3];
+        payloadLength = ((header[0] & 0x07) << 8) + (header[1] & 0xFF);
+        classID = header[2] & 0xFF;
+        commandID = header[3] & 0xFF;
     }
     
     public BGAPIPacket(int msg_type, int classID, int commandID) {
@@ -66,36 +82,100 @@ public class BGAPIPacket {
         this.commandID = commandID;
     }
     
+    /**
+     * Creates an empty packet to be used as a flyweight by BGAPIFrameDecoder.
+     */
+    BGAPIPacket() {
+    }
+    
+    /**
+     * Turns this packet into a view of a complete frame (header followed by
+     * the payload) stored in buf. The frame is not copied, so the packet is
+     * only valid until the buffer is reused.
+     */
+    void wrap(byte[] buf, int offset) {
+        msgType = (buf[offset] & 0xFF) >> 7;
+        payloadLength = ((buf[offset] & 0x07) << 8) + (buf[offset + 1] & 0xFF);
+        classID = buf[offset + 2] & 0xFF;
+        commandID = buf[offset + 3] & 0xFF;
+        frame = buf;
+        frameOffset = offset + 4;
+        data.reset();
+    }
+    
+    /**
+     * Returns a packet which owns a copy of the payload. Listeners which
+     * need to keep a packet beyond the callback (e.g. when packets are
+     * recycled by the transport) have to keep a copy instead.
+     */
+    public BGAPIPacket copy() {
+        BGAPIPacket result = new BGAPIPacket(msgType, classID, commandID);
+        result.payloadLength = payloadLength;
+        if (frame != null) result.data.write(frame, frameOffset, payloadLength);
+        else result.data.write(data.array(), 0, data.size());
+        return result;
+    }
+    
     public String toString() {
         StringBuffer result = new StringBuffer();
         result.append("< typ=" + msgType + " cla=" + classID + " cmd=" + commandID + " len=" + payloadLength + " ");
-        if (data.size() > 0) {
-            byte[] bytes = data.toByteArray();
+        byte[] bytes = (frame != null) ? frame : data.array();
+        int start = (frame != null) ? frameOffset : 0;
+        int size = (frame != null) ? payloadLength : data.size();
+        if (size > 0) {
             result.append( "[ ");
-            for (byte b : bytes) result.append( Integer.toHexString((int) (b & 0xFF)) + " ");   
+            for (int i=0; i<size; i++) {
+                byte b = bytes[start + i];
+                result.append( Integer.toHexString((int) (b & 0xFF)) + " ");
+            }
             result.append( "] ");
         }
         result.append(">");
         return result.toString();
     }
     
+    /**
+     * Points r to the payload of this packet without copying it.
+     */
+    void wrapPayload(BGAPIPacketReader r) {
+        if (frame != null) r.wrap(frame, frameOffset, payloadLength);
+        else r.wrap(data.array(), 0, data.size());
+    }
+    
     public BGAPIPacketReader getPayloadReader() {
+        if (frame != null) return new BGAPIPacketReader(frame, frameOffset, payloadLength);
         return new BGAPIPacketReader(data.toByteArray());
     }
     
+    /**
+     * @return the size of the packet (header and payload) on the wire
+     */
+    public int getPacketSize() {
+        return 4 + ((frame != null) ? payloadLength : data.size());
+    }
+    
+    /**
+     * Serializes the packet into dst, which must have getPacketSize() bytes
+     * available after offset.
+     * 
+     * @return the number of bytes written
+     */
+    public int writePacketBytes(byte[] dst, int offset) {
+        byte[] payload = (frame != null) ? frame : data.array();
+        int payloadOffset = (frame != null) ? frameOffset : 0;
+        payloadLength = (frame != null) ? payloadLength : data.size();
+        dst[offset] = (byte) ((msgType << 7) + (payloadLength >> 8));
+        dst[offset + 1] = (byte) (payloadLength & 0xFF);
+        dst[offset + 2] = (byte) (classID & 0xFF);
+        dst[offset + 3] = (byte) (commandID & 0xFF);
+        System.arraycopy(payload, payloadOffset, dst, offset + 4, payloadLength);
+        return 4 + payloadLength;
+    }
+    
     public byte[] getPacketBytes() {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        payloadLength = data.size();
-        result.write( (msgType << 7) + (payloadLength >> 8) );
-        result.write( payloadLength & 0xFF );
-        result.write( classID & 0xFF );
-        result.write( commandID & 0xFF );
-        try {
-            result.write( data.toByteArray() );
-        } catch (IOException ex) {
-            Logger.getLogger(BGAPIPacket.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return result.toByteArray();
+        byte[] result = new byte[getPacketSize()];
+        writePacketBytes(result, 0);
+        return result;
     }
     
     public void w_uint8(int v) {
@@ -131,9 +211,8 @@ public class BGAPIPacket {
     }
     
     public void w_bd_addr(BDAddr addr) {
-       byte[] bytes = addr.getByteAddr();
-       for (int i=0; i<bytes.length; i++) {
-            data.write(bytes[i]);
+        for (int i=0; i<6; i++) {
+            data.write(addr.getByte(i));
         }
     }
     
@@ -19,21 +19,179 @@
  */
 package org.thingml.bglib;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Logs the packets sent and received by a transport, as text lines through
+ * java.util.logging.
+ *
+ * The transport threads only copy the raw frames into a ring of
+ * preallocated slots; the text is built and logged by a background thread.
+ * The ring is lock free: producers claim a slot by incrementing the tail
+ * and publish it through the slot sequence number. When the ring is full
+ * the packet is not logged and counted as dropped. The background thread
+ * parks while the ring is empty, and the producer which fills it again
+ * unparks it.
  *
  * @author Franck FLEUREY (SINTEF)
  */
 public class BGAPIPacketLogger implements BGAPITransportListener {
 
+    private static final Logger LOGGER = Logger.getLogger(BGAPIPacketLogger.class.getName());
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int mask;
+    private final byte[][] frames;
+    private final int[] lengths;
+    private final boolean[] sent;
+    // Slot i is free for the producer at position p when sequence[i] == p,
+    // and ready for the consumer when sequence[i] == p + 1
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // consumer only
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long logged = 0;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    private volatile boolean idle = false; // the writer is parked or about to park
+    private volatile Thread writer;
+
+    public BGAPIPacketLogger() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity number of packets which can wait to be logged, rounded
+     * up to a power of 2
+     */
+    public BGAPIPacketLogger(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        frames = new byte[size][64];
+        lengths = new int[size];
+        sent = new boolean[size];
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequence.set(i, i);
+    }
+
     public void packetSent(BGAPIPacket packet) {
-         Logger.getLogger(BGAPIPacketLogger.class.getName()).log(Level.INFO, "SND " + packet.toString());
+        record(true, packet);
     }
 
     public void packetReceived(BGAPIPacket packet) {
-        Logger.getLogger(BGAPIPacketLogger.class.getName()).log(Level.INFO, "RCV " + packet.toString());
+        record(false, packet);
+    }
+
+    /**
+     * @return the number of packets which were not logged because the
+     * background thread could not keep up
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getLoggedCount() {
+        return logged;
+    }
+
+    /**
+     * Logs the pending packets and stops the background thread.
+     */
+    public void close() {
+        running = false;
+        Thread t = writer;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void record(boolean isSent, BGAPIPacket packet) {
+        if (!started.get() && started.compareAndSet(false, true)) startWriter();
+        long pos = tail.get();
+        int i;
+        while (true) {
+            i = (int) pos & mask;
+            long seq = sequence.get(i);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (seq < pos) { // still used by the previous round: full
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get(); // claimed by another producer
+            }
+        }
+        int size = packet.getPacketSize();
+        if (frames[i].length < size) frames[i] = new byte[size];
+        lengths[i] = packet.writePacketBytes(frames[i], 0);
+        sent[i] = isSent;
+        sequence.set(i, pos + 1);
+        // The writer sets idle before checking the ring one last time, so
+        // either it sees this slot or this sees idle
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void startWriter() {
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "BGAPI packet logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int i = (int) head & mask;
+            if (sequence.get(i) != head + 1) { // empty
+                if (!running) return;
+                idle = true;
+                if (sequence.get(i) != head + 1 && running) LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+            line.setLength(0);
+            format(line, sent[i], frames[i], lengths[i]);
+            sequence.set(i, head + mask + 1); // hand the slot back before the slow part
+            head++;
+            logged++;
+            LOGGER.log(Level.INFO, line.toString());
+        }
     }
-    
+
+    // Same text as "SND " / "RCV " + BGAPIPacket.toString()
+    private static void format(StringBuilder line, boolean isSent, byte[] frame, int length) {
+        line.append(isSent ? "SND < typ=" : "RCV < typ=").append((frame[0] & 0xFF) >> 7);
+        line.append(" cla=").append(frame[2] & 0xFF).append(" cmd=").append(frame[3] & 0xFF);
+        line.append(" len=").append(length - BGAPIFrameDecoder.HEADER_SIZE).append(' ');
+        if (length > BGAPIFrameDecoder.HEADER_SIZE) {
+            line.append("[ ");
+            for (int j = BGAPIFrameDecoder.HEADER_SIZE; j < length; j++) {
+                int b = frame[j] & 0xFF;
+                if (b >= 0x10) line.append(HEX[b >> 4]);
+                line.append(HEX[b & 0x0F]).append(' ');
+            }
+            line.append("] ");
+        }
+        line.append('>');
+    }
+
 }
@@ -22,25 +22,45 @@ package org.thingml.bglib;
 public class BGAPIPacketReader {
     
     private byte[] data;
+    private int offset;
+    private int end;
     private int index;
     
     public BGAPIPacketReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+    
+    /**
+     * Reads the payload in place from a region of a larger buffer (e.g. a
+     * decoder frame buffer), without copying it.
+     */
+    public BGAPIPacketReader(byte[] data, int offset, int length) {
+        wrap(data, offset, length);
+    }
+    
+    /**
+     * Points this reader to a new region so that it can be reused.
+     */
+    public void wrap(byte[] data, int offset, int length) {
         this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+        this.index = offset;
     }
     
     public void reset() {
-        index = 0;
+        index = offset;
     }
     
     public int length() {
-        return data.length;
+        return end - offset;
     }
     
     public int bytesLeft() {
-        return data.length - index;
+        return end - index;
     }
     
-    private Integer next_uint() {
+    private int next_uint() {
         return data[index++] & 0xFF;
     }
     
@@ -49,42 +69,60 @@ public class BGAPIPacketReader {
     }
     
     public int r_uint8() {
-        return (int)next_uint();
+        return next_uint();
     }
     
     public int r_uint16() {
-        int result = (int)next_uint();
-        result += (int)(next_uint()<<8);
+        int result = next_uint();
+        result += next_uint()<<8;
         return result;
     }
      public int r_int16() {
-        int result = (int)next_uint();
-        result += (int)(next_uint()<<8);
+        int result = next_uint();
+        result += next_uint()<<8;
         return result;
     }
     
     
     public int r_uint32() {
-        int result = (int)next_uint();
-        result += (int)(next_uint()<<8);
-        result += (int)(next_uint()<<16);
-        result += (int)(next_uint()<<24);
+        int result = next_uint();
+        result += next_uint()<<8;
+        result += next_uint()<<16;
+        result += next_uint()<<24;
         return result;
     }
     
     public byte[] r_uint8array() {
         byte[] result = new byte[next_uint()];
-        for (int i=0; i<result.length; i++) {
-            result[i] = data[index++];
-        }
+        System.arraycopy(data, index, result, 0, result.length);
+        index += result.length;
         return result;
     }
     
     public BDAddr r_bd_addr() {
-        byte[] addr = new byte[6];
+        return new BDAddr(r_bd_addr_long());
+    }
+    
+    /**
+     * Reads an address packed as by BDAddr.toLong(), without creating a BDAddr.
+     */
+    long r_bd_addr_long() {
+        long addr = 0;
         for (int i=0; i<6; i++) {
-            addr[i] = data[index++];
+            addr |= (data[index++] & 0xFFL) << (8 * i);
+        }
+        return addr;
+    }
+    
+    /**
+     * Skips a uint8array and returns a hash of its content, without copying it.
+     */
+    int r_uint8array_hash() {
+        int length = next_uint();
+        int hash = length;
+        for (int i=0; i<length; i++) {
+            hash = 31 * hash + data[index++];
         }
-        return new BDAddr(addr);
+        return hash;
     }
 }
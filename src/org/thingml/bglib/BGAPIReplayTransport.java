@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back the packets received in a capture file (see
+ * BGAPICaptureWriter), either with their recorded timing or as fast as
+ * possible. The packets which were sent are skipped, and the packets sent
+ * through this transport are discarded.
+ *
+ * Unlike the other transports, nothing is received before play() is
+ * called, so that no packet is missed by the listeners added in between.
+ */
+public class BGAPIReplayTransport extends BGAPITransport {
+
+    private final BGAPICaptureReader reader;
+    private final boolean realTime;
+    private long firstTimestamp = -1;
+    private long startTime;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * @param realTime true to wait between the packets as they were
+     * recorded, false to play them back as fast as possible
+     */
+    public BGAPIReplayTransport(Path capture, boolean realTime) throws IOException {
+        this.reader = new BGAPICaptureReader(capture);
+        this.realTime = realTime;
+    }
+
+    /**
+     * Starts the playback.
+     */
+    public void play() {
+        start();
+    }
+
+    /**
+     * Waits until all the packets have been played back.
+     *
+     * @return false if the timeout (ms) elapsed before
+     */
+    public boolean awaitEnd(long timeout) throws InterruptedException {
+        return finished.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected int receive() throws IOException {
+        do {
+            if (!reader.next()) return -1;
+        } while (reader.getDirection() != BGAPICaptureWriter.RECEIVED);
+
+        if (realTime) {
+            if (firstTimestamp < 0) {
+                firstTimestamp = reader.getTimestamp();
+                startTime = System.nanoTime();
+            }
+            long delay;
+            while ((delay = startTime + (reader.getTimestamp() - firstTimestamp) - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+        }
+        decoder.decode(reader.getFrame(), 0, reader.getFrameLength());
+        return reader.getFrameLength();
+    }
+
+    @Override
+    protected void write(byte[] bytes, int offset, int length) {
+        // Nothing to talk to
+    }
+
+    @Override
+    protected void closeInput() throws IOException {
+        reader.close();
+        finished.countDown();
+    }
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+/**
+ * Drops the repeated scan responses before they reach the listeners (see
+ * BGAPI.setScanFilter). A response of a device is forwarded when:
+ *
+ *   - the device is new,
+ *   - its advertising data changed,
+ *   - its RSSI moved by at least the RSSI delta since the last forwarded
+ *     response, or
+ *   - the refresh interval elapsed since the last forwarded response, so
+ *     that the listeners still see that the device is present.
+ *
+ * and at most once per minimum interval of the device, except for changes
+ * of the advertising data. Suppressed responses are neither copied nor
+ * queued to the event executor.
+ *
+ * The filter runs on the receiver thread and only allocates for a new
+ * device. The devices not seen for the expiry time are forgotten when more
+ * than maxDevices are known.
+ */
+public class BGAPIScanFilter {
+
+    private long minInterval = 0;         // ns
+    private long refreshInterval = 1000L * 1000000; // ns, 0 to never forward unchanged responses
+    private int rssiDelta = 6;            // dB
+    private int maxDevices = 4096;
+    private long expiry = 60000L * 1000000; // ns
+
+    // Per-device minimum intervals (ns), replacing minInterval
+    private final LongHashMap<Long> minIntervals = new LongHashMap<Long>();
+
+    private final LongHashMap<Device> devices = new LongHashMap<Device>();
+
+    private long forwarded = 0;
+    private long suppressed = 0;
+    private long newDevices = 0;
+
+    private static class Device {
+        long lastSeen;
+        long lastForwarded;
+        int dataHash;
+        int rssi;
+        long suppressed;
+    }
+
+    /**
+     * @param minInterval shortest time between two responses of a device
+     * forwarded for an RSSI move or a refresh, in ms. 0 by default.
+     */
+    public synchronized void setMinInterval(long minInterval) {
+        this.minInterval = minInterval * 1000000;
+    }
+
+    /**
+     * Overrides the minimum interval (ms) for one device, -1 to use the
+     * default again.
+     */
+    public synchronized void setMinInterval(BDAddr address, long minInterval) {
+        if (minInterval < 0) minIntervals.remove(address.toLong());
+        else minIntervals.put(address.toLong(), minInterval * 1000000);
+    }
+
+    /**
+     * @param refreshInterval time (ms) after which an unchanged response is
+     * forwarded again, 0 to never forward them. 1 s by default.
+     */
+    public synchronized void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval * 1000000;
+    }
+
+    /**
+     * @param rssiDelta smallest RSSI move (dB) forwarded, 6 by default
+     */
+    public synchronized void setRssiDelta(int rssiDelta) {
+        this.rssiDelta = rssiDelta;
+    }
+
+    /**
+     * @param maxDevices number of devices remembered before the ones not seen
+     * for expiry ms are forgotten
+     */
+    public synchronized void setCapacity(int maxDevices, long expiry) {
+        this.maxDevices = maxDevices;
+        this.expiry = expiry * 1000000;
+    }
+
+    /**
+     * Asks the dongle to report each device only once per scan, which saves
+     * the serial link but also hides RSSI changes. The filter keeps working
+     * on the responses which still arrive.
+     */
+    public void enableFirmwareFiltering(BGAPI bgapi) {
+        bgapi.send_gap_set_filtering(0, 0, 1);
+    }
+
+    public void disableFirmwareFiltering(BGAPI bgapi) {
+        bgapi.send_gap_set_filtering(0, 0, 0);
+    }
+
+    /**
+     * @param r the payload of a gap_scan_response event, read from its start
+     * @return true to forward the response
+     */
+    synchronized boolean accept(BGAPIPacketReader r, long now) {
+        int rssi = r.r_int8();
+        r.r_uint8(); // packet type
+        long address = r.r_bd_addr_long();
+        r.r_uint8(); // address type
+        r.r_uint8(); // bond
+        int dataHash = r.r_uint8array_hash();
+
+        Device d = devices.get(address);
+        if (d == null) {
+            if (devices.size() >= maxDevices) expire(now);
+            d = new Device();
+            d.dataHash = dataHash;
+            devices.put(address, d);
+            newDevices++;
+            return forward(d, rssi, now);
+        }
+        d.lastSeen = now;
+        if (dataHash != d.dataHash) {
+            d.dataHash = dataHash;
+            return forward(d, rssi, now);
+        }
+        Long custom = minIntervals.isEmpty() ? null : minIntervals.get(address);
+        long interval = custom != null ? custom : minInterval;
+        if (now - d.lastForwarded >= interval) {
+            if (Math.abs(rssi - d.rssi) >= rssiDelta) return forward(d, rssi, now);
+            if (refreshInterval > 0 && now - d.lastForwarded >= refreshInterval) return forward(d, rssi, now);
+        }
+        d.suppressed++;
+        suppressed++;
+        return false;
+    }
+
+    private boolean forward(Device d, int rssi, long now) {
+        d.lastSeen = now;
+        d.lastForwarded = now;
+        d.rssi = rssi;
+        forwarded++;
+        return true;
+    }
+
+    private void expire(long now) {
+        for (int i = 0; i < devices.capacity(); i++) {
+            Device d = devices.valueAt(i);
+            if (d != null && now - d.lastSeen > expiry) {
+                devices.remove(devices.keyAt(i));
+                i--; // remove() may move a following entry into slot i
+            }
+        }
+        if (devices.size() >= maxDevices) devices.clear();
+    }
+
+    /**
+     * Forgets all the devices, so that their next responses are forwarded.
+     */
+    public synchronized void reset() {
+        devices.clear();
+    }
+
+    public synchronized long getForwardedCount() {
+        return forwarded;
+    }
+
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * @return the number of responses suppressed for a device since it was
+     * last forgotten
+     */
+    public synchronized long getSuppressedCount(BDAddr address) {
+        Device d = devices.get(address.toLong());
+        return d == null ? 0 : d.suppressed;
+    }
+
+    /**
+     * @return the number of responses forwarded because the device was new
+     */
+    public synchronized long getNewDeviceCount() {
+        return newDevices;
+    }
+
+    public synchronized int getDeviceCount() {
+        return devices.size();
+    }
+
+    public synchronized String toString() {
+        return "Scan filter: " + forwarded + " responses forwarded, " + suppressed + " suppressed, " + devices.size() + " devices";
+    }
+
+}
@@ -19,6 +19,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,9 +30,9 @@ import java.util.logging.Logger;
  *
  * @author Franck FLEUREY (SINTEF)
  */
-public class BGAPITransport implements Runnable {
+public class BGAPITransport implements Runnable, BGAPIFrameDecoder.FrameListener {
     
-    protected ArrayList<BGAPITransportListener> listeners = new ArrayList<BGAPITransportListener>();
+    protected final BGAPIListenerList<BGAPITransportListener> listeners = new BGAPIListenerList<BGAPITransportListener>(new BGAPITransportListener[0]);
     public void addListener(BGAPITransportListener l) {
         listeners.add(l);
     }
@@ -46,89 +50,319 @@ public class BGAPITransport implements Runnable {
     public long getReceivedBytes() {
         return receivedBytes;
     }
+    
+    protected BGAPIFrameDecoder decoder = new BGAPIFrameDecoder(this);
+    
+    /**
+     * Enables the allocation free decoding mode: received packets are then
+     * views on a reused frame buffer which are only valid while listeners
+     * are being notified. Listeners which keep packets must copy them.
+     */
+    public void setRecyclePackets(boolean recyclePackets) {
+        decoder.setRecyclePackets(recyclePackets);
+    }
+
+    public long getDecodedPackets() {
+        return decoder.getDecodedPackets();
+    }
+
+    /**
+     * @return the number of received bytes skipped to find the framing again
+     */
+    public long getDiscardedBytes() {
+        return decoder.getDiscardedBytes();
+    }
+
+    public long getResyncCount() {
+        return decoder.getResyncCount();
+    }
+
+    /**
+     * @see BGAPIFrameDecoder#setHeaderValidator
+     */
+    public void setHeaderValidator(BGAPIFrameDecoder.HeaderValidator validator) {
+        decoder.setHeaderValidator(validator);
+    }
 
     public BGAPITransport(InputStream in, OutputStream out) {
         this.in = in;
         this.out = out;
+        start();
+    }
+    
+    /**
+     * For subclasses which are not based on streams. They have to call
+     * start() once they are ready to receive.
+     */
+    protected BGAPITransport() {
+    }
+    
+    protected void start() {
         rxthread = new Thread(this);
         rxthread.start();
     }
     
-    public void sendPacket(BGAPIPacket p) {
+    /**
+     * @return false if the packet was not sent: the write failed, or the
+     * send queue is full under the DROP policy. A queued packet can still
+     * be dropped if a later write of the sender thread fails.
+     */
+    public boolean sendPacket(BGAPIPacket p) {
+        BlockingQueue<BGAPIPacket> queue = sendQueue;
+        if (queue != null) {
+            return enqueue(queue, p);
+        }
+        if (!awaitSender()) return false;
+        return writePacket(p);
+    }
+    
+    // Guards write(), which the sender thread and direct senders share
+    private final Object writeLock = new Object();
+    
+    private boolean writePacket(BGAPIPacket p) {
         try {
-            out.write(p.getPacketBytes());
-            for(BGAPITransportListener l : listeners) l.packetSent(p);
+            byte[] bytes = p.getPacketBytes();
+            synchronized (writeLock) {
+                write(bytes, 0, bytes.length);
+            }
         } catch (IOException ex) {
             Logger.getLogger(BGAPITransport.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        for(BGAPITransportListener l : listeners.snapshot()) l.packetSent(p);
+        return true;
+    }
+    
+    
+    
+    /**************************************************************************
+     * CODE OF THE SENDER THREAD
+     *************************************************************************/
+    
+    /**
+     * What sendPacket does when the send queue is full.
+     */
+    public enum OverflowPolicy {
+        BLOCK, // wait for the sender thread to make room
+        DROP,  // discard the packet (see getDroppedPackets())
+        FAIL   // throw an IllegalStateException
+    }
+    
+    private static final BGAPIPacket STOP = new BGAPIPacket(0, 0, 0);
+    private static final int BATCH_SIZE = 4096;
+    
+    private volatile BlockingQueue<BGAPIPacket> sendQueue = null;
+    private OverflowPolicy overflowPolicy;
+    private long flushDelay;
+    private Thread txthread = null;
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    /**
+     * @return the number of packets discarded because the send queue was
+     * full, or because the sender thread failed to write them
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+    
+    /**
+     * Makes sendPacket asynchronous: packets are put in a bounded queue and
+     * written by a sender thread, which coalesces the queued packets into
+     * as few writes as possible. The batch is written as soon as the queue
+     * is empty, or after waiting up to flushDelay ms for more packets.
+     * Listeners are notified of sent packets from the sender thread.
+     *
+     * If a write fails, the queued packets are dropped and sendPacket writes
+     * directly again. Direct writes wait for the sender thread to write the
+     * packets queued before them, so that packets are always written in the
+     * order they were sent.
+     */
+    public synchronized void startSendQueue(int capacity, OverflowPolicy policy, int flushDelay) {
+        if (sendQueue != null) return;
+        this.overflowPolicy = policy;
+        this.flushDelay = TimeUnit.MILLISECONDS.toNanos(flushDelay);
+        final BlockingQueue<BGAPIPacket> queue = new ArrayBlockingQueue<BGAPIPacket>(capacity);
+        sendQueue = queue;
+        final Thread previous = txthread; // may still be writing the packets of a stopped queue
+        txthread = new Thread() {
+            public void run() {
+                if (previous != null && !joinSender(previous)) return;
+                sendLoop(queue);
+            }
+        };
+        txthread.setDaemon(true);
+        txthread.start();
+    }
+    
+    private boolean enqueue(BlockingQueue<BGAPIPacket> queue, BGAPIPacket p) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(p);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                break;
+            case DROP:
+                if (!queue.offer(p)) {
+                    droppedPackets.incrementAndGet();
+                    return false;
+                }
+                break;
+            case FAIL:
+                if (!queue.offer(p)) throw new IllegalStateException("BGAPI send queue is full.");
+                break;
+        }
+        // The queue may have been stopped meanwhile, nobody takes from it then
+        if (sendQueue != queue && queue.remove(p)) return awaitSender() && writePacket(p);
+        return true;
+    }
+    
+    /**
+     * Waits for the sender thread of a stopped queue to write its packets.
+     *
+     * @return false if interrupted
+     */
+    private boolean awaitSender() {
+        Thread t;
+        synchronized (this) {
+            if (sendQueue != null) return true; // restarted meanwhile, its sender waits for the old one
+            t = txthread;
         }
+        if (t == null || t == Thread.currentThread()) return true;
+        return joinSender(t);
     }
     
+    private static boolean joinSender(Thread t) {
+        try {
+            t.join();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
     
+    private void sendLoop(BlockingQueue<BGAPIPacket> sendQueue) {
+        byte[] batch = new byte[BATCH_SIZE];
+        ArrayList<BGAPIPacket> sent = new ArrayList<BGAPIPacket>();
+        int len = 0;
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                BGAPIPacket p;
+                if (len == 0) p = sendQueue.take();
+                else if (flushDelay > 0) p = sendQueue.poll(flushDelay, TimeUnit.NANOSECONDS);
+                else p = sendQueue.poll();
+
+                if (p == STOP) stopping = true;
+                else if (p != null && len + p.getPacketSize() <= BATCH_SIZE) {
+                    len += p.writePacketBytes(batch, len);
+                    sent.add(p);
+                    continue;
+                }
+                // queue idle, batch full or stopping: flush
+                if (len > 0) {
+                    synchronized (writeLock) {
+                        write(batch, 0, len);
+                    }
+                    for (BGAPIPacket s : sent) {
+                        for (BGAPITransportListener l : listeners.snapshot()) l.packetSent(s);
+                    }
+                    sent.clear();
+                    len = 0;
+                }
+                if (p != null && p != STOP) { // did not fit in the previous batch
+                    len += p.writePacketBytes(batch, len);
+                    sent.add(p);
+                }
+            }
+            // Packets queued after STOP, by senders which had not seen the queue stop
+            for (BGAPIPacket p; (p = sendQueue.poll()) != null; ) {
+                if (p != STOP) writePacket(p);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(BGAPITransport.class.getName()).log(Level.SEVERE, null, ex);
+            // Nobody takes from the queue any more: write directly from now on
+            synchronized (this) {
+                if (this.sendQueue == sendQueue) this.sendQueue = null;
+            }
+            droppedPackets.addAndGet(sent.size());
+            for (BGAPIPacket p; (p = sendQueue.poll()) != null; ) {
+                if (p != STOP) droppedPackets.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Stops the sender thread once it has written the remaining queued
+     * packets, waiting up to 1 s for it. Packets sent meanwhile are written
+     * after them.
+     */
+    private void stopSendQueue() {
+        BlockingQueue<BGAPIPacket> sendQueue;
+        Thread sender;
+        synchronized (this) {
+            sendQueue = this.sendQueue;
+            sender = txthread;
+            if (sendQueue == null) return;
+            this.sendQueue = null; // anything sent from now on is written directly
+        }
+        try {
+            sendQueue.put(STOP);
+            sender.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
     
     /**************************************************************************
      * CODE OF THE RECEIVER THREAD
      *************************************************************************/
     
     public void stop() {
+        stopSendQueue();
         terminate = true;
     }
     
+    private final byte[] buffer = new byte[1024];
+    
+    /**
+     * Blocks until some bytes are available and passes them to the decoder.
+     * 
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    protected int receive() throws IOException {
+        int len = in.read(buffer);
+        if (len > 0) decoder.decode(buffer, 0, len);
+        return len;
+    }
+    
+    protected void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+    
+    protected void closeInput() throws IOException {
+        in.close();
+    }
+    
     public void run() {
 
-        byte[] buffer = new byte[1024];
-        byte[] hdr = new byte[HEADER_SIZE];
-        //byte[] data = new byte[2048];
         int len = -1;
-        int idx = 0;
-        int state = WAITING;
-        BGAPIPacket p = null;
-        
 
         try {
             //System.out.println("Receiver Thread Started.");
-            while (!terminate && ((len = this.in.read(buffer)) > -1)) {
+            while (!terminate && ((len = receive()) > -1)) {
                 receivedBytes += len;
-                
-                for (int i = 0; i < len; i++) {
-                    byte c = buffer[i];
-                    if (state == WAITING) {
-                            idx = 0;
-                            state = HEADER;
-                            hdr[idx++] = c;
-                    }
-                    else if (state == HEADER) {
-                            hdr[idx++] = c;
-                            if (idx == HEADER_SIZE) { // We got the whole header
-                                p = new BGAPIPacket(hdr);
-                                //System.out.println("Got Header" + p.toString());
-
-                                if (p.getPayloadLength() > 0) { // there is a payload
-                                            state = PAYLOAD;
-                                            idx = 0;	
-                                    }
-                                    else { // There is no payload
-                                            state = WAITING;
-                                            for (BGAPITransportListener l : listeners) l.packetReceived(p);
-                                            p = null;
-                                    }
-                            }
-                    }
-                    else if (state == PAYLOAD) {
-                            p.getPayloadData().write(c);
-                            idx++;
-                            if (idx == p.getPayloadLength()) { // We got a complete message
-                                    state = WAITING;
-                                    for (BGAPITransportListener l : listeners) l.packetReceived(p);
-                                    p = null;
-                            }
-                    }
-                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
         try {
-            in.close();
+            closeInput();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -136,12 +370,10 @@ public class BGAPITransport implements Runnable {
         System.err.println("BLED112: Receiver thread stopped.");
     }
     
+    public void frameReceived(BGAPIPacket p) {
+        for (BGAPITransportListener l : listeners.snapshot()) l.packetReceived(p);
+    }
+    
     private boolean terminate = false;
 
-    private static final int WAITING = 0;
-    private static final int HEADER = 1;
-    private static final int PAYLOAD = 2;
-    
-    private static final int HEADER_SIZE = 4;
-    
 }
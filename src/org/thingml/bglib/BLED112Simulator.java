@@ -0,0 +1,597 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A BLED112 dongle simulated in software, to run and load test the
+ * applications without hardware:
+ *
+ *   BLED112Simulator sim = new BLED112Simulator(500, 40);
+ *   BGAPI bgapi = new BGAPI(new BGAPITransport(sim.getInputStream(), sim.getOutputStream()));
+ *
+ * It speaks the BGAPI binary protocol over pipes and answers the commands
+ * used to discover and connect devices (system_get_info, gap_discover,
+ * gap_end_procedure, gap_connect_direct, connection_disconnect) and to use
+ * their GATT database (attclient_read_by_group_type, find_information,
+ * read_by_handle, attribute_write). Other commands are not answered.
+ *
+ * The simulated advertisers send scan responses while the dongle scans. The
+ * first ones are heart rate belts, which accept connections and expose a
+ * heart rate service:
+ *
+ *   handle 1  primary service 0x180D (handles 1 to 4)
+ *   handle 2  characteristic declaration
+ *   handle 3  heart rate measurement 0x2A37 (notify)
+ *   handle 4  client characteristic configuration 0x2902
+ *
+ * Once notifications are enabled on handle 4, a belt notifies heart rate
+ * measurements (heart rate and one RR interval) at the notification rate.
+ */
+public class BLED112Simulator {
+
+    public static final int HANDLE_HR_SERVICE = 1;
+    public static final int HANDLE_HR_DECLARATION = 2;
+    public static final int HANDLE_HR_MEASUREMENT = 3;
+    public static final int HANDLE_HR_CONFIG = 4;
+
+    // BGAPI error codes
+    private static final int ERR_WRONG_STATE = 0x0181;
+    private static final int ERR_INVALID_PARAM = 0x0180;
+    private static final int ERR_NOT_CONNECTED = 0x0186;
+    private static final int ERR_OUT_OF_MEMORY = 0x0182;
+    private static final int ERR_CONNECTION_TERMINATED = 0x0216; // local host
+
+    private static final int IDLE = 0;
+    private static final int SCANNING = 1;
+    private static final int CONNECTING = 2;
+
+    // Advertiser addresses are 0:5e:1a:0:xx:xx
+    private static final long ADDRESS_PREFIX = 0x005E1A000000L;
+
+    private static final long TICK = 10; // ms between two bursts of advertisements and notifications
+
+    private final int advertisers;
+    private final int belts;
+
+    private volatile int maxConnections = 8;
+    private volatile double advertisingRate = 5;   // scan responses per second and advertiser
+    private volatile double notificationRate = 1;  // notifications per second and belt
+    private volatile long connectionDelay = 20;    // ms
+
+    private final Pipe commands;
+    private final Pipe events;
+    private final BGAPIFrameDecoder decoder;
+    private final Random random = new Random();
+
+    // Guarded by this
+    private int state = IDLE;
+    private int connectingTo = -1;     // belt for which connect_direct is pending
+    private long connectingSince = 0;
+    private int connectingHandle = -1;
+    private final int[] connectedBelt;  // connection handle -> belt, -1 if free
+    private final boolean[] notifying;  // connection handle -> notifications enabled
+    private final long[] notified;      // notifications sent per connection
+    private int nextAdvertiser = 0;
+    private double scanCredit = 0;
+    private double notificationCredit = 0;
+    private final Frame frame = new Frame();
+    private final ArrayDeque<byte[]> output = new ArrayDeque<byte[]>(); // flushed, not written yet
+
+    // Writes are done outside the lock of the simulator, so that a host
+    // which does not read while it writes cannot block the commands. This
+    // lock keeps the output in the order it was flushed.
+    private final Object writeLock = new Object();
+
+    private volatile boolean running = true;
+    private final Thread commandThread;
+    private final Thread radioThread;
+
+    /**
+     * @param advertisers number of simulated devices which advertise
+     * @param belts number of these devices which are heart rate belts
+     */
+    public BLED112Simulator(int advertisers, int belts) {
+        if (belts > advertisers || advertisers > 0xFFFF) throw new IllegalArgumentException("Invalid number of devices.");
+        this.advertisers = advertisers;
+        this.belts = belts;
+        connectedBelt = new int[256];
+        notifying = new boolean[256];
+        notified = new long[256];
+        for (int i = 0; i < connectedBelt.length; i++) connectedBelt[i] = -1;
+        try {
+            commands = Pipe.open();
+            events = Pipe.open();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        decoder = new BGAPIFrameDecoder(new BGAPIFrameDecoder.FrameListener() {
+            public void frameReceived(BGAPIPacket packet) {
+                command(packet);
+            }
+        });
+        decoder.setRecyclePackets(true);
+
+        commandThread = new Thread(new Runnable() {
+            public void run() {
+                commandLoop();
+            }
+        }, "BLED112 simulator commands");
+        commandThread.setDaemon(true);
+        commandThread.start();
+        radioThread = new Thread(new Runnable() {
+            public void run() {
+                radioLoop();
+            }
+        }, "BLED112 simulator radio");
+        radioThread.setDaemon(true);
+        radioThread.start();
+    }
+
+    /**
+     * @return the stream from which the host reads responses and events
+     */
+    public InputStream getInputStream() {
+        return Channels.newInputStream(events.source());
+    }
+
+    /**
+     * @return the stream to which the host writes commands
+     */
+    public OutputStream getOutputStream() {
+        return Channels.newOutputStream(commands.sink());
+    }
+
+    public Pipe.SourceChannel getInputChannel() {
+        return events.source();
+    }
+
+    public Pipe.SinkChannel getOutputChannel() {
+        return commands.sink();
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1 || maxConnections > connectedBelt.length) throw new IllegalArgumentException("Invalid number of connections: " + maxConnections);
+        this.maxConnections = maxConnections;
+    }
+
+    public void setAdvertisingRate(double advertisingRate) {
+        this.advertisingRate = advertisingRate;
+    }
+
+    public void setNotificationRate(double notificationRate) {
+        this.notificationRate = notificationRate;
+    }
+
+    /**
+     * @param connectionDelay ms between gap_connect_direct and connection_status
+     */
+    public void setConnectionDelay(long connectionDelay) {
+        this.connectionDelay = connectionDelay;
+    }
+
+    /**
+     * @return the address of advertiser index. Advertisers 0 to belts - 1
+     * are the heart rate belts.
+     */
+    public static BDAddr getAddress(int index) {
+        return new BDAddr(ADDRESS_PREFIX | (index & 0xFFFF));
+    }
+
+    private int getAdvertiser(BDAddr address) {
+        long a = address.toLong();
+        if ((a & ~0xFFFFL) != ADDRESS_PREFIX) return -1;
+        int index = (int) (a & 0xFFFF);
+        return index < advertisers ? index : -1;
+    }
+
+    /**
+     * @return the total number of notifications sent
+     */
+    public synchronized long getNotificationCount() {
+        long total = 0;
+        for (long n : notified) total += n;
+        return total;
+    }
+
+    public void close() {
+        running = false;
+        try {
+            commands.sink().close();
+            commands.source().close();
+            events.sink().close();
+        } catch (IOException e) {
+            Logger.getLogger(BLED112Simulator.class.getName()).log(Level.FINE, null, e);
+        }
+        radioThread.interrupt();
+    }
+
+    /* ***********************************************************************
+     * Commands
+     *************************************************************************/
+
+    private void commandLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        try {
+            while (running) {
+                buffer.clear();
+                if (commands.source().read(buffer) < 0) break;
+                buffer.flip();
+                decoder.decode(buffer);
+            }
+        } catch (IOException e) {
+            if (running) Logger.getLogger(BLED112Simulator.class.getName()).log(Level.SEVERE, "Simulator stopped.", e);
+        }
+    }
+
+    private void command(BGAPIPacket p) {
+        if (p.getMsgType() != 0) return;
+        BGAPIPacketReader r = p.getPayloadReader();
+        int cls = p.getClassID();
+        int cmd = p.getCommandID();
+        synchronized (this) {
+            frame.clear();
+            if (cls == 0) system(cmd, r);
+            else if (cls == 3) connection(cmd, r);
+            else if (cls == 4) attclient(cmd, r);
+            else if (cls == 6) gap(cmd, r);
+            flush();
+        }
+        write();
+    }
+
+    private void system(int cmd, BGAPIPacketReader r) {
+        switch (cmd) {
+            case 0: // reset
+                reset();
+                frame.begin(1, 0, 0).u16(1).u16(3).u16(2).u16(122).u16(6).u8(1).u8(1).end(); // boot
+                break;
+            case 1: // hello
+                frame.begin(0, 0, 1).end();
+                break;
+            case 6: // get_connections
+                frame.begin(0, 0, 6).u8(maxConnections).end();
+                break;
+            case 8: // get_info
+                frame.begin(0, 0, 8).u16(1).u16(3).u16(2).u16(122).u16(6).u8(1).u8(1).end();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void gap(int cmd, BGAPIPacketReader r) {
+        switch (cmd) {
+            case 1: // set_mode
+                frame.begin(0, 6, 1).u16(0).end();
+                break;
+            case 2: // discover
+                if (state == IDLE) {
+                    state = SCANNING;
+                    frame.begin(0, 6, 2).u16(0).end();
+                } else {
+                    frame.begin(0, 6, 2).u16(ERR_WRONG_STATE).end();
+                }
+                break;
+            case 3: { // connect_direct
+                int belt = getAdvertiser(r.r_bd_addr());
+                int handle = freeHandle();
+                if (state == CONNECTING) { // a scan is stopped, like on the dongle
+                    frame.begin(0, 6, 3).u16(ERR_WRONG_STATE).u8(0).end();
+                } else if (handle < 0) {
+                    frame.begin(0, 6, 3).u16(ERR_OUT_OF_MEMORY).u8(0).end();
+                } else {
+                    // Devices which are not belts never answer, like out of range devices
+                    state = CONNECTING;
+                    connectingTo = (belt >= 0 && belt < belts && !isConnected(belt)) ? belt : -1;
+                    connectingHandle = handle;
+                    connectingSince = System.currentTimeMillis();
+                    frame.begin(0, 6, 3).u16(0).u8(handle).end();
+                }
+                break;
+            }
+            case 4: // end_procedure
+                if (state == IDLE) {
+                    frame.begin(0, 6, 4).u16(ERR_WRONG_STATE).end();
+                } else {
+                    state = IDLE;
+                    connectingTo = -1;
+                    frame.begin(0, 6, 4).u16(0).end();
+                }
+                break;
+            case 5: // connect_selective
+                frame.begin(0, 6, 5).u16(ERR_INVALID_PARAM).u8(0).end();
+                break;
+            case 6: // set_filtering
+                frame.begin(0, 6, 6).u16(0).end();
+                break;
+            case 7: // set_scan_parameters
+                frame.begin(0, 6, 7).u16(0).end();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void connection(int cmd, BGAPIPacketReader r) {
+        if (cmd != 0) return; // only disconnect
+        int conn = r.r_uint8();
+        if (connectedBelt[conn] < 0) {
+            frame.begin(0, 3, 0).u8(conn).u16(ERR_NOT_CONNECTED).end();
+        } else {
+            disconnected(conn);
+            frame.begin(0, 3, 0).u8(conn).u16(0).end();
+            frame.begin(1, 3, 4).u8(conn).u16(ERR_CONNECTION_TERMINATED).end();
+        }
+    }
+
+    private void attclient(int cmd, BGAPIPacketReader r) {
+        int conn = r.r_uint8();
+        boolean connected = connectedBelt[conn] >= 0;
+        switch (cmd) {
+            case 1: { // read_by_group_type
+                int start = r.r_uint16();
+                int end = r.r_uint16();
+                byte[] uuid = r.r_uint8array();
+                frame.begin(0, 4, 1).u8(conn).u16(connected ? 0 : ERR_NOT_CONNECTED).end();
+                if (!connected) break;
+                boolean primary = uuid.length == 2 && uuid[0] == 0x00 && uuid[1] == 0x28;
+                if (primary && start <= HANDLE_HR_SERVICE && end >= HANDLE_HR_SERVICE) {
+                    frame.begin(1, 4, 2).u8(conn).u16(HANDLE_HR_SERVICE).u16(HANDLE_HR_CONFIG).array(0x0D, 0x18).end();
+                }
+                frame.begin(1, 4, 1).u8(conn).u16(0).u16(end).end();
+                break;
+            }
+            case 3: { // find_information
+                int start = r.r_uint16();
+                int end = r.r_uint16();
+                frame.begin(0, 4, 3).u8(conn).u16(connected ? 0 : ERR_NOT_CONNECTED).end();
+                if (!connected) break;
+                for (int h = Math.max(start, HANDLE_HR_SERVICE); h <= Math.min(end, HANDLE_HR_CONFIG); h++) {
+                    frame.begin(1, 4, 4).u8(conn).u16(h);
+                    switch (h) {
+                        case HANDLE_HR_SERVICE: frame.array(0x00, 0x28); break;
+                        case HANDLE_HR_DECLARATION: frame.array(0x03, 0x28); break;
+                        case HANDLE_HR_MEASUREMENT: frame.array(0x37, 0x2A); break;
+                        default: frame.array(0x02, 0x29); break;
+                    }
+                    frame.end();
+                }
+                frame.begin(1, 4, 1).u8(conn).u16(0).u16(end).end();
+                break;
+            }
+            case 4: { // read_by_handle
+                int handle = r.r_uint16();
+                frame.begin(0, 4, 4).u8(conn).u16(connected ? 0 : ERR_NOT_CONNECTED).end();
+                if (!connected) break;
+                if (handle == HANDLE_HR_CONFIG) {
+                    frame.begin(1, 4, 5).u8(conn).u16(handle).u8(0).array(notifying[conn] ? 1 : 0, 0).end();
+                } else {
+                    frame.begin(1, 4, 1).u8(conn).u16(0x0401).u16(handle).end(); // read not permitted
+                }
+                break;
+            }
+            case 5: { // attribute_write
+                int handle = r.r_uint16();
+                byte[] value = r.r_uint8array();
+                frame.begin(0, 4, 5).u8(conn).u16(connected ? 0 : ERR_NOT_CONNECTED).end();
+                if (!connected) break;
+                if (handle == HANDLE_HR_CONFIG && value.length == 2) {
+                    notifying[conn] = (value[0] & 0x01) != 0;
+                    frame.begin(1, 4, 1).u8(conn).u16(0).u16(handle).end();
+                } else {
+                    frame.begin(1, 4, 1).u8(conn).u16(0x0403).u16(handle).end(); // write not permitted
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void reset() {
+        state = IDLE;
+        connectingTo = -1;
+        for (int i = 0; i < connectedBelt.length; i++) disconnected(i);
+    }
+
+    private int freeHandle() {
+        for (int i = 0; i < maxConnections; i++) {
+            if (connectedBelt[i] < 0) return i;
+        }
+        return -1;
+    }
+
+    private boolean isConnected(int belt) {
+        for (int b : connectedBelt) {
+            if (b == belt) return true;
+        }
+        return false;
+    }
+
+    private void disconnected(int conn) {
+        connectedBelt[conn] = -1;
+        notifying[conn] = false;
+    }
+
+    /* ***********************************************************************
+     * Advertisements, connections and notifications
+     *************************************************************************/
+
+    private void radioLoop() {
+        long last = System.nanoTime();
+        while (running) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            tick((now - last) / 1e9);
+            write();
+            last = now;
+        }
+    }
+
+    private synchronized void tick(double elapsed) {
+        frame.clear();
+        if (state == CONNECTING && connectingTo >= 0 && System.currentTimeMillis() - connectingSince >= connectionDelay) {
+            int conn = connectingHandle;
+            connectedBelt[conn] = connectingTo;
+            notified[conn] = 0;
+            frame.begin(1, 3, 0).u8(conn).u8(0x05).addr(connectingTo).u8(0).u16(60).u16(100).u16(0).u8(0xFF).end();
+            state = IDLE;
+            connectingTo = -1;
+        }
+        if (state == SCANNING && advertisers > 0) {
+            scanCredit += advertisers * advertisingRate * elapsed;
+            for (; scanCredit >= 1; scanCredit--) {
+                int i = nextAdvertiser;
+                nextAdvertiser = (nextAdvertiser + 1) % advertisers;
+                if (i < belts && isConnected(i)) continue; // connected belts stop advertising
+                advertisement(i);
+                if (frame.size() > 3000) flush();
+            }
+        } else {
+            scanCredit = 0;
+        }
+        notificationCredit += notificationRate * elapsed;
+        for (; notificationCredit >= 1; notificationCredit--) {
+            for (int conn = 0; conn < connectedBelt.length; conn++) {
+                if (notifying[conn]) {
+                    notification(conn);
+                    if (frame.size() > 3000) flush();
+                }
+            }
+        }
+        flush();
+    }
+
+    private void advertisement(int i) {
+        // Each advertiser has its own distance, the RSSI varies by a few dB around it
+        int rssi = -40 - (i * 7919) % 50 - random.nextInt(5);
+        frame.begin(1, 6, 0).u8(rssi).u8(0).addr(i).u8(0).u8(0xFF);
+        if (i < belts) {
+            // flags, 16 bits service UUIDs (heart rate), complete local name "HRM nnnnn"
+            frame.u8(3 + 4 + 11).u8(2).u8(0x01).u8(0x06).u8(3).u8(0x03).u8(0x0D).u8(0x18).u8(10).u8(0x09);
+            frame.u8('H').u8('R').u8('M').u8(' ').digits(i);
+        } else {
+            frame.u8(3 + 11).u8(2).u8(0x01).u8(0x06).u8(10).u8(0x09);
+            frame.u8('S').u8('I').u8('M').u8(' ').digits(i);
+        }
+        frame.end();
+    }
+
+    private void notification(int conn) {
+        int belt = connectedBelt[conn];
+        long n = notified[conn]++;
+        int hr = 60 + (belt * 7) % 40 + (int) (10 * Math.sin(n / 20.0));
+        int rr = 60 * 1024 / hr; // 1/1024 s
+        // flags: 8 bits heart rate, sensor contact detected, one RR interval
+        frame.begin(1, 4, 5).u8(conn).u16(HANDLE_HR_MEASUREMENT).u8(1).u8(4).u8(0x16).u8(hr).u16(rr).end();
+    }
+
+    // Called with the lock of the simulator held, the bytes are written by write()
+    private void flush() {
+        if (frame.size() == 0) return;
+        output.add(Arrays.copyOf(frame.bytes, frame.size()));
+        frame.clear();
+    }
+
+    private void write() {
+        synchronized (writeLock) {
+            while (running) {
+                byte[] bytes;
+                synchronized (this) {
+                    bytes = output.poll();
+                }
+                if (bytes == null) return;
+                try {
+                    ByteBuffer b = ByteBuffer.wrap(bytes);
+                    while (b.hasRemaining()) events.sink().write(b);
+                } catch (IOException e) {
+                    if (running) Logger.getLogger(BLED112Simulator.class.getName()).log(Level.SEVERE, "Simulator stopped.", e);
+                    running = false;
+                }
+            }
+        }
+    }
+
+    // Encodes BGAPI packets back to back into a reusable buffer
+    private static class Frame {
+
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+        private int start = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        Frame begin(int msgType, int classID, int commandID) {
+            start = size;
+            u8(msgType << 7).u8(0).u8(classID).u8(commandID);
+            return this;
+        }
+
+        void end() {
+            int length = size - start - BGAPIFrameDecoder.HEADER_SIZE;
+            bytes[start] |= (byte) ((length >> 8) & 0x07);
+            bytes[start + 1] = (byte) length;
+        }
+
+        Frame u8(int v) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[size++] = (byte) v;
+            return this;
+        }
+
+        Frame u16(int v) {
+            return u8(v).u8(v >> 8);
+        }
+
+        Frame array(int... v) {
+            u8(v.length);
+            for (int b : v) u8(b);
+            return this;
+        }
+
+        Frame addr(int index) {
+            return u8(index).u8(index >> 8).u8(0x00).u8(0x1A).u8(0x5E).u8(0x00);
+        }
+
+        Frame digits(int v) {
+            for (int d = 10000; d > 0; d /= 10) u8('0' + (v / d) % 10);
+            return this;
+        }
+    }
+
+}
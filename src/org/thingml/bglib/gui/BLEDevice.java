@@ -19,6 +19,8 @@
  */
 package org.thingml.bglib.gui;
 
+import org.thingml.bglib.BDAddr;
+
 import java.util.Hashtable;
 
 /**
@@ -28,8 +30,19 @@ import java.util.Hashtable;
 public class BLEDevice {
     
     protected String address;
+    protected long key; // BDAddr.toLong()
     protected String name;
     protected int rssi;
+    // Exponential moving average of the RSSI, NaN before the first value
+    protected double smoothedRssi = Double.NaN;
+    protected volatile long lastSeen = System.nanoTime();
+
+    // Row in the view of a BLEDeviceList, maintained on the event dispatch thread
+    int viewIndex = -1;
+    int viewStamp = 0;
+
+    // Weight of a new RSSI value in the average
+    public static final double RSSI_SMOOTHING = 0.25;
     
     protected Hashtable<String, BLEService> services = new Hashtable<String, BLEService>();
 
@@ -46,7 +59,12 @@ public class BLEDevice {
     }
     
     public BLEDevice(String address) {
-        this.address = address;
+        this(BDAddr.fromString(address));
+    }
+
+    public BLEDevice(BDAddr address) {
+        this.address = address.toString();
+        this.key = address.toLong();
         name = "";
     }
 
@@ -54,24 +72,70 @@ public class BLEDevice {
         return address;
     }
 
+    /**
+     * @return the address packed by BDAddr.toLong()
+     */
+    public long getKey() {
+        return key;
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * @return the last RSSI reported
+     */
     public int getRssi() {
         return rssi;
     }
 
+    /**
+     * @return the moving average of the RSSI, which does not jump with
+     * every advertisement
+     */
+    public double getSmoothedRssi() {
+        return Double.isNaN(smoothedRssi) ? rssi : smoothedRssi;
+    }
+
+    /**
+     * @return System.nanoTime() of the last advertisement
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return ms since the last advertisement
+     */
+    public long getAge() {
+        return (System.nanoTime() - lastSeen) / 1000000;
+    }
+
+    /**
+     * Marks the device as seen now.
+     */
+    public void touch() {
+        lastSeen = System.nanoTime();
+    }
+
     public void setName(String name) {
         this.name = name;
     }
 
+    /**
+     * Records the RSSI of a new advertisement, which also marks the device
+     * as seen.
+     */
     public void setRssi(int rssi) {
         this.rssi = rssi;
+        if (Double.isNaN(smoothedRssi)) smoothedRssi = rssi;
+        else smoothedRssi += RSSI_SMOOTHING * (rssi - smoothedRssi);
+        touch();
     }
     
     public String toString() {
-        return name + " [" + address + "] (" + rssi + " dBm)";
+        return name + " [" + address + "] (" + Math.round(getSmoothedRssi()) + " dBm)";
     }
     
     public String bytesToString(byte[] bytes) {
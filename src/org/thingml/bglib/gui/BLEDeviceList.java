@@ -19,52 +19,298 @@
  */
 package org.thingml.bglib.gui;
 
+import org.thingml.bglib.BDAddr;
+import org.thingml.bglib.LongHashMap;
+
 import javax.swing.*;
+import javax.swing.event.ListDataListener;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * The devices seen by a scan, as a list model for Swing views. Devices are
+ * also registered by their packed address, so that finding the device of a
+ * scan response takes neither a linear search nor a string.
+ *
+ * The list is changed from any thread (add, changed, remove...), but the
+ * views only see it through getSize() and getElementAt(), which read a copy
+ * owned by the event dispatch thread. Without listeners, they read the
+ * devices themselves. While the model has listeners, a Swing timer, created
+ * by the first one, applies the pending changes to that copy at most
+ * getMaxRefreshRate() times per second, firing one event per run of added,
+ * removed or changed rows, so that a busy scan does not repaint the whole
+ * list for every advertisement.
+ *
+ * For long scans, startSweeper() removes the devices which were not seen
+ * for a while, and setMaxDevices() bounds the list by removing the device
+ * seen least recently. The devices are marked as seen by BLEDevice.setRssi,
+ * so with a BGAPIScanFilter the time to live must be longer than its
+ * refresh interval. The sweeper runs on its own thread.
  *
  * @author ffl
  */
 public class BLEDeviceList extends AbstractListModel  {
     
+    // The devices, guarded by this
     protected ArrayList<BLEDevice> devices = new ArrayList<BLEDevice>();
+    protected LongHashMap<BLEDevice> registry = new LongHashMap<BLEDevice>();
     /*        
     public ArrayList<BLEDevice> getDevices() {
         return devices;
     }
     */
     
-    public void clear() {
-        int idx = devices.size() - 1;
-        if (idx < 0) return;
+    private int maxDevices = Integer.MAX_VALUE;
+    private ScheduledExecutorService sweeper = null;
+
+    // Changes not published yet, guarded by this
+    private boolean structureChanged = false;
+    private LongHashMap<BLEDevice> changes = new LongHashMap<BLEDevice>();
+    private LongHashMap<BLEDevice> publishedChanges = new LongHashMap<BLEDevice>();
+    // Changes are only recorded while a view listens
+    private volatile boolean viewed = false;
+
+    // What the views see, only used on the event dispatch thread
+    private BLEDevice[] view = new BLEDevice[0];
+    private int stamp = 0;
+    private int[] changedRows = new int[16];
+
+    public static final int DEFAULT_REFRESH_RATE = 20; // per second
+    private int refreshDelay = 1000 / DEFAULT_REFRESH_RATE; // ms
+    private Timer timer = null;
+
+    public synchronized void clear() {
+        if (devices.isEmpty()) return;
         devices.clear();
-        fireIntervalRemoved(this, 0, idx);
+        registry.clear();
+        changes.clear();
+        structureChanged = true;
     }
     
-    public void add(BLEDevice d) {
+    public synchronized void add(BLEDevice d) {
+        if (devices.size() >= maxDevices) removeOldest();
         devices.add(d);
-        fireIntervalAdded(this, 0, devices.size()-1);
+        registry.put(d.getKey(), d);
+        structureChanged = true;
     }
     
+    /**
+     * Repaints the row of d with the next refresh.
+     */
     public void changed(BLEDevice d) {
-        if (devices.isEmpty()) return;
-        fireContentsChanged(this, 0, getSize()-1);
+        if (!viewed) return;
+        synchronized (this) {
+            changes.put(d.getKey(), d);
+        }
     }
-    
-    public BLEDevice getFromAddress(String address) {
+
+    public synchronized void remove(BLEDevice d) {
+        if (!devices.remove(d)) return;
+        registry.remove(d.getKey());
+        changes.remove(d.getKey());
+        structureChanged = true;
+    }
+
+    private void removeOldest() {
+        BLEDevice oldest = null;
         for (BLEDevice d : devices) {
-            if (d.address.equals(address)) return d;
+            if (oldest == null || d.getLastSeen() - oldest.getLastSeen() < 0) oldest = d;
         }
-        return null;
+        if (oldest != null) remove(oldest);
     }
 
-    public int getSize() {
+    /**
+     * Removes the devices not seen for ttl ms.
+     *
+     * @return the number of devices removed
+     */
+    public synchronized int removeStale(long ttl) {
+        long now = System.nanoTime();
+        long limit = ttl * 1000000;
+        int kept = 0;
+        for (int i = 0; i < devices.size(); i++) {
+            BLEDevice d = devices.get(i);
+            if (now - d.getLastSeen() > limit) {
+                registry.remove(d.getKey());
+                changes.remove(d.getKey());
+            } else {
+                devices.set(kept++, d);
+            }
+        }
+        int removed = devices.size() - kept;
+        for (int i = devices.size() - 1; i >= kept; i--) devices.remove(i);
+        if (removed > 0) structureChanged = true;
+        return removed;
+    }
+
+    /**
+     * @param maxDevices largest number of devices kept, the device seen least
+     * recently is removed to add a new one
+     */
+    public synchronized void setMaxDevices(int maxDevices) {
+        this.maxDevices = maxDevices;
+        while (devices.size() > maxDevices) removeOldest();
+    }
+
+    /**
+     * Removes the devices not seen for ttl ms every ttl / 4 ms (at least
+     * every second), until stopSweeper().
+     */
+    public synchronized void startSweeper(final long ttl) {
+        stopSweeper();
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "BLE device sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(ttl / 4, 1000);
+        sweeper.scheduleWithFixedDelay(() -> removeStale(ttl), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSweeper() {
+        if (sweeper != null) sweeper.shutdown();
+        sweeper = null;
+    }
+    
+    public synchronized BLEDevice getFromAddress(String address) {
+        return registry.get(BDAddr.fromString(address).toLong());
+    }
+
+    public synchronized BLEDevice getFromAddress(BDAddr address) {
+        return registry.get(address.toLong());
+    }
+
+    /**
+     * @param key an address packed by BDAddr.toLong()
+     */
+    public synchronized BLEDevice get(long key) {
+        return registry.get(key);
+    }
+
+    /**
+     * @return the number of devices, including the changes not published yet
+     */
+    public synchronized int getDeviceCount() {
         return devices.size();
     }
 
+    /* ***********************************************************************
+     * Swing model, on the event dispatch thread
+     *************************************************************************/
+
+    public int getSize() {
+        if (!viewed) return getDeviceCount();
+        return view.length;
+    }
+
     public Object getElementAt(int index) {
-        return devices.get(index);
+        if (!viewed) {
+            synchronized (this) {
+                return devices.get(index);
+            }
+        }
+        return view[index];
+    }
+
+    /**
+     * @param rate largest number of refreshes of the views per second
+     */
+    public void setMaxRefreshRate(int rate) {
+        refreshDelay = 1000 / rate;
+        if (timer != null) timer.setDelay(refreshDelay);
+    }
+
+    public int getMaxRefreshRate() {
+        return 1000 / refreshDelay;
+    }
+
+    @Override
+    public void addListDataListener(ListDataListener l) {
+        // The first view starts from the current devices, without events
+        if (getListDataListeners().length == 0) publishChanges();
+        super.addListDataListener(l);
+        viewed = true;
+        if (timer == null) timer = new Timer(refreshDelay, e -> publishChanges());
+        timer.start();
+    }
+
+    @Override
+    public void removeListDataListener(ListDataListener l) {
+        super.removeListDataListener(l);
+        if (getListDataListeners().length == 0) {
+            viewed = false;
+            timer.stop();
+        }
+    }
+
+    /**
+     * Applies the pending changes to the rows seen by the views and fires
+     * the corresponding events. Called by the timer, or directly on the
+     * event dispatch thread to refresh at once.
+     */
+    public void publishChanges() {
+        BLEDevice[] next = null;
+        LongHashMap<BLEDevice> changed;
+        synchronized (this) {
+            if (!structureChanged && changes.isEmpty()) return;
+            if (structureChanged) next = devices.toArray(new BLEDevice[devices.size()]);
+            structureChanged = false;
+            changed = changes;
+            changes = publishedChanges;
+            publishedChanges = changed;
+        }
+        if (next != null) publishStructure(next);
+        publishContents(changed);
+        changed.clear();
+    }
+
+    private void publishStructure(BLEDevice[] next) {
+        stamp++;
+        for (BLEDevice d : next) d.viewStamp = stamp;
+        // Removed rows, from the end so that every event matches the view at that time
+        for (int i = view.length - 1; i >= 0; i--) {
+            if (view[i].viewStamp == stamp) continue;
+            int last = i;
+            while (i > 0 && view[i - 1].viewStamp != stamp) i--;
+            BLEDevice[] shorter = new BLEDevice[view.length - (last - i + 1)];
+            System.arraycopy(view, 0, shorter, 0, i);
+            System.arraycopy(view, last + 1, shorter, i, view.length - last - 1);
+            view = shorter;
+            fireIntervalRemoved(this, i, last);
+        }
+        // Devices are only appended, the remaining rows are the start of next
+        boolean prefix = view.length <= next.length;
+        for (int i = 0; prefix && i < view.length; i++) prefix = view[i] == next[i];
+        if (!prefix) {
+            int size = view.length;
+            view = new BLEDevice[0];
+            if (size > 0) fireIntervalRemoved(this, 0, size - 1);
+        }
+        int first = view.length;
+        view = next;
+        for (int i = 0; i < view.length; i++) view[i].viewIndex = i;
+        if (view.length > first) fireIntervalAdded(this, first, view.length - 1);
+    }
+
+    private void publishContents(LongHashMap<BLEDevice> changed) {
+        int n = 0;
+        for (int i = 0; i < changed.capacity(); i++) {
+            BLEDevice d = changed.valueAt(i);
+            if (d == null) continue;
+            int row = d.viewIndex;
+            if (row < 0 || row >= view.length || view[row] != d) continue; // not in the view
+            if (n == changedRows.length) changedRows = Arrays.copyOf(changedRows, n * 2);
+            changedRows[n++] = row;
+        }
+        Arrays.sort(changedRows, 0, n);
+        for (int i = 0; i < n; i++) {
+            int first = changedRows[i];
+            while (i + 1 < n && changedRows[i + 1] == changedRows[i] + 1) i++;
+            fireContentsChanged(this, first, changedRows[i]);
+        }
     }
     
 }
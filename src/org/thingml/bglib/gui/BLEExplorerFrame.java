@@ -36,6 +36,8 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
     protected SerialPort port;
 
     protected BLEDeviceList devList = new BLEDeviceList();
+    // Keeps the repeated advertisements of the same devices away from the EDT
+    protected BGAPIScanFilter scanFilter = new BGAPIScanFilter();
 
     /**
      * Creates new form BLEExplorerFrame
@@ -300,6 +302,9 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
             try {
                 jTextFieldBLED112.setText("Connected on " + port);
                 bgapi = new BGAPI(new BGAPITransport(port.getInputStream(), port.getOutputStream()));
+                // Events update the Swing components, deliver them on the event dispatch thread
+                bgapi.setEventExecutor(BGAPIEventExecutor.serial(java.awt.EventQueue::invokeLater, 1024));
+                bgapi.setScanFilter(scanFilter);
                 bgapi.addListener(this);
                 Thread.sleep(250);
                 bgapi.send_system_get_info();
@@ -339,6 +344,8 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
 
     private void jButtonDiscoverActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButtonDiscoverActionPerformed
         devList.clear();
+        devList.startSweeper(60000);
+        scanFilter.reset();
         jListDevices.setModel(devList);
         bgapi.send_gap_set_scan_parameters(10, 250, 1);
         bgapi.send_gap_discover(1);
@@ -359,6 +366,8 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
 
     private void jButtonStopDiscoverActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButtonStopDiscoverActionPerformed
         bgapi.send_gap_end_procedure();
+        // Keep the devices found by the scan
+        devList.stopSweeper();
         jButtonStopDiscover.setEnabled(false);
         jButtonDiscover.setEnabled(true);
 
@@ -556,7 +565,13 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
     public void receive_connection_status(int conn, int flags, BDAddr address, int address_type, int conn_interval, int timeout, int latency, int bonding) {
         jTextFieldConnStatus.setText("[" + address.toString() + "] Conn = " + conn + " Flags = " + flags);
         if (flags != 0) {
-            bledevice = devList.getFromAddress(address.toString());
+            // The device may have been removed from the list since it stopped advertising
+            BLEDevice d = devList.getFromAddress(address);
+            if (d == null) {
+                d = new BLEDevice(address);
+                devList.add(d);
+            }
+            bledevice = d;
             this.connection = conn;
             jButtonConnect.setEnabled(false);
             jButtonDisconnect.setEnabled(true);
@@ -709,9 +724,9 @@ public class BLEExplorerFrame extends javax.swing.JFrame implements BGAPIListene
     public void receive_gap_set_directed_connectable_mode(int result) {
     }
     public void receive_gap_scan_response(int rssi, int packet_type, BDAddr sender, int address_type, int bond, byte[] data) {
-        BLEDevice d = devList.getFromAddress(sender.toString());
+        BLEDevice d = devList.getFromAddress(sender);
         if (d == null) {
-            d = new BLEDevice(sender.toString());
+            d = new BLEDevice(sender);
             devList.add(d);
             System.out.println("Create device: " + d.toString());
         }
@@ -20,17 +20,17 @@
 package org.thingml.bglib.gui;
 
 import org.thingml.bglib.BGAPI;
+import org.thingml.bglib.BGAPIAttributeListener;
 import org.thingml.bglib.BGAPIDefaultListener;
-
-import java.util.ArrayList;
+import org.thingml.bglib.BGAPIListenerList;
 
 /**
  *
  * @author ffl
  */
-public class BLEServiceInstance extends BGAPIDefaultListener {
+public class BLEServiceInstance extends BGAPIDefaultListener implements BGAPIAttributeListener {
     
-    public ArrayList<BLEServiceValueListener> listeners = new ArrayList<BLEServiceValueListener>();
+    private final BGAPIListenerList<BLEServiceValueListener> listeners = new BGAPIListenerList<BLEServiceValueListener>(new BLEServiceValueListener[0]);
     
     public void addBLEServiceValueListener(BLEServiceValueListener l) {
         listeners.add(l);
@@ -72,11 +72,13 @@ public class BLEServiceInstance extends BGAPIDefaultListener {
         this.value_handle = value_handle;
         this.interval_handle = interval_handle;
         this.config_handle = config_handle;
-        bgapi.addListener(this);
+        bgapi.subscribeAttribute(connection, value_handle, this);
+        bgapi.subscribeAttribute(connection, interval_handle, this);
     }
     
     public void disconnect(){
-        bgapi.removeListener(this);
+        bgapi.unsubscribeAttribute(connection, value_handle, this);
+        bgapi.unsubscribeAttribute(connection, interval_handle, this);
     }
     
     public BLEServiceInstance(BGAPI bgapi, int connection, BLEService srv) {
@@ -111,12 +113,12 @@ public class BLEServiceInstance extends BGAPIDefaultListener {
     public void receive_attclient_attribute_value(int conn, int atthandle, int type, byte[] value) {
         if (connection == conn) {
             if (atthandle == value_handle) {
-                for (BLEServiceValueListener l : listeners) {
+                for (BLEServiceValueListener l : listeners.snapshot()) {
                     l.receivedValue(this, value);
                 }
             }
             else if (atthandle == interval_handle) {
-                for (BLEServiceValueListener l : listeners) {
+                for (BLEServiceValueListener l : listeners.snapshot()) {
                     l.receivedInterval(this, (value[0]<<8) + (value[1] & 0xFF));
                 }
             }
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib.samples;
+
+import org.thingml.bglib.BDAddr;
+import org.thingml.bglib.BGAPI;
+import org.thingml.bglib.BGAPIDefaultListener;
+import org.thingml.bglib.BGAPIFrameDecoder;
+import org.thingml.bglib.BGAPIListener;
+import org.thingml.bglib.BGAPIPacket;
+import org.thingml.bglib.BGAPIPacketReader;
+import org.thingml.bglib.BGAPITransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Measures how many events per second BGAPI.packetReceived decodes and
+ * dispatches, on a mix of gap_scan_response and attclient_attribute_value
+ * events. For comparison, the same events are also decoded the way it was
+ * done before the dispatch table (nested switch, payload copied by
+ * getPayloadReader()).
+ */
+public class DispatchBenchmark extends BGAPIDefaultListener implements BGAPIFrameDecoder.FrameListener {
+
+    private static final int ROUNDS = 5;
+    private static final int REPEAT = 20000;
+
+    private long events = 0;
+    private boolean legacy = false;
+    private BGAPI bgapi;
+    private final ArrayList<BGAPIListener> legacyListeners = new ArrayList<BGAPIListener>(); // as the former public BGAPI.listeners
+
+    public static void main(String[] args) {
+        byte[] mix = eventMix(100);
+        DispatchBenchmark b = new DispatchBenchmark();
+        b.bgapi = new BGAPI(new IdleTransport());
+        b.bgapi.addListener(b);
+        b.legacyListeners.add(b);
+        BGAPIFrameDecoder decoder = new BGAPIFrameDecoder(b);
+        decoder.setRecyclePackets(true);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                b.legacy = (mode == 1);
+                b.events = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < REPEAT; i++) decoder.decode(mix, 0, mix.length);
+                long elapsed = System.nanoTime() - start;
+                System.out.println((b.legacy ? "switch + copy: " : "table:         ") + (b.events * 1000000000L / elapsed) + " events/s");
+            }
+        }
+    }
+
+    public void frameReceived(BGAPIPacket packet) {
+        if (legacy) legacyPacketReceived(packet);
+        else bgapi.packetReceived(packet);
+    }
+
+    @Override
+    public void receive_gap_scan_response(int rssi, int packet_type, BDAddr sender, int address_type, int bond, byte[] data) {
+        events++;
+    }
+
+    @Override
+    public void receive_attclient_attribute_value(int connection, int atthandle, int type, byte[] value) {
+        events++;
+    }
+
+    // The previous decoding path, restricted to the two events of the mix
+    private void legacyPacketReceived(BGAPIPacket packet) {
+        if (packet.getMsgType() == 0) return;
+        switch (packet.getClassID()) {
+            case 4:
+                switch (packet.getCommandID()) {
+                    case 5: {
+                        BGAPIPacketReader r = packet.getPayloadReader();
+                        int connection = r.r_uint8();
+                        int atthandle = r.r_uint16();
+                        int type = r.r_uint8();
+                        byte[] value = r.r_uint8array();
+                        for (BGAPIListener l : legacyListeners) l.receive_attclient_attribute_value(connection, atthandle, type, value);
+                        break;
+                    }
+                    default: break;
+                }
+                break;
+            case 6:
+                switch (packet.getCommandID()) {
+                    case 0: {
+                        BGAPIPacketReader r = packet.getPayloadReader();
+                        int rssi = r.r_int8();
+                        int packet_type = r.r_uint8();
+                        BDAddr sender = r.r_bd_addr();
+                        int address_type = r.r_uint8();
+                        int bond = r.r_uint8();
+                        byte[] data = r.r_uint8array();
+                        for (BGAPIListener l : legacyListeners) l.receive_gap_scan_response(rssi, packet_type, sender, address_type, bond, data);
+                        break;
+                    }
+                    default: break;
+                }
+                break;
+            default: break;
+        }
+    }
+
+    private static byte[] eventMix(int count) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            BGAPIPacket p;
+            if (i % 2 == 0) {
+                p = new BGAPIPacket(1, 6, 0);
+                p.w_int8(-60 - (i % 30));
+                p.w_uint8(0);
+                p.w_bd_addr(new BDAddr(new byte[]{(byte) i, 0x01, 0x02, 0x03, 0x04, 0x05}));
+                p.w_uint8(0);
+                p.w_uint8(0xFF);
+                p.w_uint8array(new byte[]{0x02, 0x01, 0x06, 0x09, 0x09, 'H', 'R', 'M', ' ', 'B', 'e', 'l', 't'});
+            } else {
+                p = new BGAPIPacket(1, 4, 5);
+                p.w_uint8(0);
+                p.w_uint16(0x0C);
+                p.w_uint8(1);
+                p.w_uint8array(new byte[]{0x16, 0x48, 0x12, 0x03});
+            }
+            byte[] bytes = p.getPacketBytes();
+            result.write(bytes, 0, bytes.length);
+        }
+        return result.toByteArray();
+    }
+
+    // A transport which never receives anything, packets are fed directly
+    private static class IdleTransport extends BGAPITransport {
+        IdleTransport() {
+            super(new InputStream() {
+                public int read() {
+                    return -1;
+                }
+            }, new OutputStream() {
+                public void write(int b) {}
+            });
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib.samples;
+
+import org.thingml.bglib.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans with all the BLED112 dongles given on the command line, connects to
+ * every heart rate sensor found, spreading the connections over the dongles,
+ * and prints the merged event feed of all the dongles.
+ *
+ * Usage: MultiAdapterDiscovery /dev/ttyACM0 /dev/ttyACM1 ...
+ */
+public class MultiAdapterDiscovery implements BGAPIAdapterManager.FeedListener {
+
+    private static final int SCAN_TIME = 5000;    // ms
+    private static final int CONNECT_TIME = 5000; // ms
+
+    private final Set<BDAddr> sensors = new LinkedHashSet<BDAddr>();
+    private final Semaphore connected = new Semaphore(0);
+
+    public static void main(String[] args) throws InterruptedException {
+        MultiAdapterDiscovery sample = new MultiAdapterDiscovery();
+        BGAPIAdapterManager manager = new BGAPIAdapterManager(4096);
+        manager.addFeedListener(sample);
+        manager.start();
+
+        for (String port : args) {
+            BGAPITransport transport = org.thingml.bglib.gui.BLED112.connectBLED112(port);
+            if (transport != null) manager.addAdapter(port, transport);
+        }
+
+        System.out.println("Scanning...");
+        for (BGAPIAdapterManager.Adapter a : manager.getAdapters()) {
+            a.getBGAPI().send_gap_set_scan_parameters(10, 250, 1);
+            a.getBGAPI().send_gap_discover(1);
+        }
+        Thread.sleep(SCAN_TIME);
+        for (BGAPIAdapterManager.Adapter a : manager.getAdapters()) a.getBGAPI().send_gap_end_procedure();
+
+        BDAddr[] found;
+        synchronized (sample.sensors) {
+            found = sample.sensors.toArray(new BDAddr[0]);
+        }
+        for (BDAddr address : found) {
+            try {
+                // A dongle handles one connection attempt at a time, wait for each one to complete
+                manager.connect(address, 0, 60, 76, 100, 0).get();
+                if (!sample.connected.tryAcquire(CONNECT_TIME, TimeUnit.MILLISECONDS)) {
+                    System.out.println("Could not connect to " + address);
+                    BGAPIAdapterManager.Adapter adapter = manager.findAdapter(address);
+                    if (adapter != null) manager.cancelPendingConnects(adapter);
+                }
+            } catch (ExecutionException e) {
+                System.out.println("Could not connect to " + address + ": " + e.getCause().getMessage());
+            }
+        }
+
+        for (BGAPIAdapterManager.Adapter a : manager.getAdapters()) {
+            System.out.println(a + ": " + a.getLoad() + "/" + a.getMaxConnections() + " connections");
+        }
+        Thread.sleep(SCAN_TIME);
+        manager.stop();
+        System.out.println(manager.getDroppedPackets() + " packets dropped from the feed.");
+    }
+
+    public void packetReceived(BGAPIAdapterManager.Adapter adapter, long timestamp, BGAPIPacket packet) {
+        System.out.println((timestamp / 1000000) + " " + adapter + " " + packet);
+        if (packet.getMsgType() != 1) return;
+        BGAPIPacketReader r = packet.getPayloadReader();
+        if (packet.getClassID() == 6 && packet.getCommandID() == 0) { // gap_scan_response
+            r.r_int8();
+            r.r_uint8();
+            BDAddr sender = r.r_bd_addr();
+            r.r_uint8();
+            r.r_uint8();
+            if (isHeartRateSensor(r.r_uint8array())) {
+                synchronized (sensors) {
+                    sensors.add(sender);
+                }
+            }
+        }
+        else if (packet.getClassID() == 3 && packet.getCommandID() == 0) { // connection_status
+            r.r_uint8();
+            if ((r.r_uint8() & 0x01) != 0) connected.release();
+        }
+    }
+
+    // Looks for the heart rate service (0x180D) in the 16 bits UUID lists of the advertising data
+    private static boolean isHeartRateSensor(byte[] data) {
+        int i = 0;
+        while (i + 1 < data.length) {
+            int length = data[i] & 0xFF;
+            int type = data[i + 1] & 0xFF;
+            if (type == 0x02 || type == 0x03) {
+                for (int j = i + 2; j + 1 <= i + length && j + 1 < data.length; j += 2) {
+                    if (data[j] == 0x0D && data[j + 1] == 0x18) return true;
+                }
+            }
+            if (length == 0) break;
+            i += length + 1;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib.samples;
+
+import org.thingml.bglib.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+
+/**
+ * Plays back a capture file as fast as possible through BGAPI, alone, with
+ * the text packet logger and with a capture writer, and prints how many
+ * packets per second each configuration decodes.
+ *
+ * Usage: ReplayBenchmark [capture file]
+ * Without a file, the traffic of a simulated dongle is recorded first.
+ */
+public class ReplayBenchmark extends BGAPIDefaultListener {
+
+    private static final int ROUNDS = 3;
+    private static final long RECORD_TIME = 3000; // ms
+
+    // Kept here, the log manager only holds loggers weakly
+    private static final Logger PACKET_LOGGER = Logger.getLogger(BGAPIPacketLogger.class.getName());
+
+    private long events = 0;
+
+    public static void main(String[] args) throws Exception {
+        Path capture;
+        if (args.length > 0) {
+            capture = Paths.get(args[0]);
+        } else {
+            capture = Files.createTempFile("bgapi", ".bgcp");
+            capture.toFile().deleteOnExit();
+            record(capture);
+        }
+
+        // The text logger formats every packet, but its output is not wanted here
+        PACKET_LOGGER.setUseParentHandlers(false);
+        Path copy = Files.createTempFile("bgapi", ".bgcp");
+        copy.toFile().deleteOnExit();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            replay(capture, "BGAPI:                  ", null);
+            replay(capture, "BGAPI + packet logger:  ", new BGAPIPacketLogger());
+            BGAPICaptureWriter writer = new BGAPICaptureWriter(copy);
+            replay(capture, "BGAPI + capture writer: ", writer);
+            writer.close();
+        }
+    }
+
+    private static void replay(Path capture, String name, BGAPITransportListener logger) throws Exception {
+        BGAPIReplayTransport transport = new BGAPIReplayTransport(capture, false);
+        transport.setRecyclePackets(true);
+        if (logger != null) transport.addListener(logger);
+        BGAPI bgapi = new BGAPI(transport);
+        ReplayBenchmark b = new ReplayBenchmark();
+        bgapi.addListener(b);
+        long start = System.nanoTime();
+        transport.play();
+        transport.awaitEnd(Long.MAX_VALUE);
+        long elapsed = System.nanoTime() - start;
+        String details = "";
+        if (logger instanceof BGAPIPacketLogger) {
+            BGAPIPacketLogger packetLogger = (BGAPIPacketLogger) logger;
+            packetLogger.close();
+            details = ", " + packetLogger.getDroppedCount() + " packets not logged";
+        }
+        System.out.println(name + (transport.getDecodedPackets() * 1000000000L / elapsed) + " packets/s (" + b.events + " events" + details + ")");
+    }
+
+    private static void record(Path capture) throws Exception {
+        System.out.println("Recording " + RECORD_TIME + " ms of simulated traffic...");
+        BLED112Simulator sim = new BLED112Simulator(1000, 0);
+        sim.setAdvertisingRate(100);
+        BGAPITransport transport = new BGAPITransport(sim.getInputStream(), sim.getOutputStream());
+        BGAPICaptureWriter writer = new BGAPICaptureWriter(capture);
+        transport.addListener(writer);
+        BGAPI bgapi = new BGAPI(transport);
+        bgapi.send_gap_discover(1);
+        Thread.sleep(RECORD_TIME);
+        bgapi.send_gap_end_procedure();
+        Thread.sleep(100);
+        transport.removeListener(writer);
+        writer.close();
+        bgapi.disconnect();
+        sim.close();
+        System.out.println(writer.getRecordCount() + " packets recorded.");
+    }
+
+    @Override
+    public void receive_gap_scan_response(int rssi, int packet_type, BDAddr sender, int address_type, int bond, byte[] data) {
+        events++;
+    }
+
+    @Override
+    public void receive_attclient_attribute_value(int connection, int atthandle, int type, byte[] value) {
+        events++;
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib.samples;
+
+import org.thingml.bglib.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the event throughput of BGAPI against a simulated BLED112:
+ * scan responses from many advertisers, then heart rate notifications from
+ * many connected belts.
+ *
+ * Usage: SimulatorBenchmark [advertisers] [belts] [advertising rate] [notification rate]
+ */
+public class SimulatorBenchmark extends BGAPIDefaultListener {
+
+    private static final long TIMEOUT = 1000;    // ms
+    private static final long DURATION = 5000;   // ms of each measurement
+
+    private final AtomicLong scanResponses = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final Semaphore connected = new Semaphore(0);
+
+    public static void main(String[] args) throws Exception {
+        int advertisers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int belts = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        double advertisingRate = args.length > 2 ? Double.parseDouble(args[2]) : 20;
+        double notificationRate = args.length > 3 ? Double.parseDouble(args[3]) : 100;
+
+        BLED112Simulator sim = new BLED112Simulator(advertisers, belts);
+        sim.setMaxConnections(Math.max(1, belts));
+        sim.setAdvertisingRate(advertisingRate);
+        sim.setNotificationRate(notificationRate);
+        sim.setConnectionDelay(0);
+
+        BGAPITransport transport = new BGAPITransport(sim.getInputStream(), sim.getOutputStream());
+        transport.setRecyclePackets(true);
+        BGAPI bgapi = new BGAPI(transport);
+        SimulatorBenchmark b = new SimulatorBenchmark();
+        bgapi.addListener(b);
+        bgapi.send_system_get_info_async(TIMEOUT).get();
+
+        System.out.println("Scanning " + advertisers + " advertisers at " + advertisingRate + " Hz...");
+        bgapi.send_gap_discover_async(1, TIMEOUT).get();
+        Thread.sleep(DURATION);
+        bgapi.send_gap_end_procedure_async(TIMEOUT).get();
+        System.out.println("scan responses: " + (b.scanResponses.get() * 1000 / DURATION) + " /s (expected " + (long) (advertisers * advertisingRate) + " /s)");
+
+        System.out.println("Connecting " + belts + " belts...");
+        for (int i = 0; i < belts; i++) {
+            BGAPIPacketReader r = bgapi.send_gap_connect_direct_async(BLED112Simulator.getAddress(i), 0, 60, 76, 100, 0, TIMEOUT).get().getPayloadReader();
+            int result = r.r_uint16();
+            int conn = r.r_uint8();
+            if (result != 0) throw new IllegalStateException("Belt " + i + " refused the connection: 0x" + Integer.toHexString(result));
+            if (!b.connected.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) throw new IllegalStateException("Belt " + i + " did not connect.");
+            bgapi.send_attclient_attribute_write_async(conn, BLED112Simulator.HANDLE_HR_CONFIG, new byte[]{0x01, 0x00}, TIMEOUT).get();
+        }
+
+        b.notifications.set(0);
+        Thread.sleep(DURATION);
+        System.out.println("notifications: " + (b.notifications.get() * 1000 / DURATION) + " /s (expected " + (long) (belts * notificationRate) + " /s)");
+        System.out.println(transport.getDiscardedBytes() + " bytes discarded by the framer.");
+
+        bgapi.disconnect();
+        sim.close();
+    }
+
+    @Override
+    public void receive_gap_scan_response(int rssi, int packet_type, BDAddr sender, int address_type, int bond, byte[] data) {
+        scanResponses.incrementAndGet();
+    }
+
+    @Override
+    public void receive_connection_status(int connection, int flags, BDAddr address, int address_type, int conn_interval, int timeout, int latency, int bonding) {
+        if ((flags & 0x01) != 0) connected.release();
+    }
+
+    @Override
+    public void receive_attclient_attribute_value(int connection, int atthandle, int type, byte[] value) {
+        notifications.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012 SINTEF <franck.fleurey@sintef.no>
+ *
+ * Licensed under the GNU LESSER GENERAL PUBLIC LICENSE, Version 3, 29 June 2007;
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingml.bglib.samples;
+
+import org.thingml.bglib.BDAddr;
+import org.thingml.bglib.BGAPIChannelTransport;
+import org.thingml.bglib.BGAPIPacket;
+import org.thingml.bglib.BGAPITransport;
+import org.thingml.bglib.BGAPITransportListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compares the receive throughput of the stream based BGAPITransport with
+ * the channel based BGAPIChannelTransport. A writer thread pushes recorded
+ * gap_scan_response events through a pipe as fast as possible.
+ */
+public class TransportBenchmark implements BGAPITransportListener {
+
+    private static final int PACKETS = 2000000;
+    private static final int ROUNDS = 3;
+
+    private CountDownLatch done = new CountDownLatch(PACKETS);
+
+    public void packetSent(BGAPIPacket packet) {}
+
+    public void packetReceived(BGAPIPacket packet) {
+        done.countDown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] chunk = scanResponses(100);
+        for (int i = 0; i < ROUNDS; i++) {
+            System.out.println("stream:  " + run(chunk, false) + " packets/s");
+            System.out.println("channel: " + run(chunk, true) + " packets/s");
+        }
+        System.exit(0);
+    }
+
+    private static long run(final byte[] chunk, boolean channel) throws Exception {
+        final Pipe pipe = Pipe.open();
+        TransportBenchmark counter = new TransportBenchmark();
+        BGAPITransport transport;
+        if (channel) transport = new BGAPIChannelTransport(pipe.source(), pipe.sink());
+        else transport = new BGAPITransport(Channels.newInputStream(pipe.source()), Channels.newOutputStream(pipe.sink()));
+        transport.setRecyclePackets(true);
+        transport.addListener(counter);
+
+        Thread writer = new Thread() {
+            public void run() {
+                ByteBuffer b = ByteBuffer.wrap(chunk);
+                try {
+                    for (int sent = 0; sent < PACKETS; sent += 100) {
+                        b.clear();
+                        while (b.hasRemaining()) pipe.sink().write(b);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        long start = System.nanoTime();
+        writer.start();
+        boolean finished = counter.done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        transport.stop();
+        pipe.sink().close();
+        if (!finished) {
+            throw new TimeoutException("Only " + (PACKETS - counter.done.getCount()) + " of " + PACKETS + " packets received in 60 s");
+        }
+        return PACKETS * 1000000000L / elapsed;
+    }
+
+    private static byte[] scanResponses(int count) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            BGAPIPacket p = new BGAPIPacket(1, 6, 0);
+            p.w_int8(-60 - (i % 30));
+            p.w_uint8(0);
+            p.w_bd_addr(new BDAddr(new byte[]{(byte) i, 0x01, 0x02, 0x03, 0x04, 0x05}));
+            p.w_uint8(0);
+            p.w_uint8(0xFF);
+            p.w_uint8array("HRM Belt".getBytes());
+            byte[] bytes = p.getPacketBytes();
+            result.write(bytes, 0, bytes.length);
+        }
+        return result.toByteArray();
+    }
+
+}